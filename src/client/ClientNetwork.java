@@ -2,49 +2,143 @@ package client;
 
 import model.Message;
 import model.User;
+import protocol.CoalescingWriter;
+import protocol.EncodedFrame;
+import protocol.FrameCodec;
+import protocol.FrameType;
+import protocol.Handshake;
+import protocol.PresenceChange;
 import utils.Constants;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Once connected, a lost connection is re-established in the background until disconnect() is
+// called or the server refuses us, other than for our name still being held by the connection
+// we lost. Outgoing messages wait in the queue meanwhile, the rooms we were in are joined again,
+// and the server replays what was missed in each of them from the last sequence we saw there.
 public class ClientNetwork {
+    // Queued to stop the writer thread of the current connection
+    private static final EncodedFrame END_OF_STREAM = new EncodedFrame(new byte[0]);
+
+    public enum ConnectionState {
+        CONNECTED, RECONNECTING, DISCONNECTED
+    }
+
+    public interface ConnectionListener {
+        // Called from the network threads
+        void onConnectionStateChanged(ConnectionState state);
+    }
+
+    public interface PresenceListener {
+        // Everyone in the room, replaces whatever was known before
+        void onPresenceSnapshot(String room, List<User> users);
+
+        // One PresenceChange for one user in the room
+        void onPresenceChanged(String room, byte change, User user);
+    }
+
+    public interface RoomListListener {
+        // Room names with their member counts, answers requestRoomList()
+        void onRoomList(Map<String, Integer> rooms);
+    }
+
+    public interface RoomListener {
+        // The server let us in, the room's history follows
+        void onRoomJoined(String room);
+
+        // We are not in the room after all, e.g. the server refused the join. It is not joined
+        // again on reconnect.
+        void onRoomLeft(String room);
+    }
+
     private Socket socket;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
+    private DataOutputStream output;
+    private DataInputStream input;
+    private Thread writerThread;
     private User currentUser;
     private final BlockingQueue<Message> incomingMessages;
+    private final BlockingQueue<EncodedFrame> outgoingFrames;
     private volatile boolean connected;
+    // Set by disconnect(), or when the server turns a reconnect down; nothing is retried after it
+    private volatile boolean closed;
+    // Why the server turned down the last open(), null if it did not
+    private String refusal;
+    // Rooms to be in, the default one included. Joined again on every connect.
+    private final Set<String> rooms;
+    // Last numbered message received per room, sent on the next join so only the gap is replayed
+    private final Map<String, Long> lastSequences;
+    private volatile ConnectionListener connectionListener;
+    private volatile PresenceListener presenceListener;
+    private volatile RoomListListener roomListListener;
+    private volatile RoomListener roomListener;
+    // Version of each room's presence list the listener has, missing while waiting for a
+    // snapshot. Only touched by the listener thread.
+    private final Map<String, Long> presenceVersions;
+    // Users of snapshots that came in several frames, until the last one is there. Only touched
+    // by the listener thread.
+    private final Map<String, List<User>> partialSnapshots;
     private String serverHost;
     private int serverPort;
+    // Numbers sent messages for flight recordings, the server numbers them only once received
+    private final AtomicLong sentMessages;
+    private final LatencyTracer tracer;
 
     public ClientNetwork(String serverHost, int serverPort) {
         this.serverHost = serverHost;
         this.serverPort = serverPort;
         incomingMessages = new LinkedBlockingQueue<>();
+        outgoingFrames = new LinkedBlockingQueue<>();
+        rooms = new CopyOnWriteArraySet<>(List.of(Constants.DEFAULT_ROOM));
+        lastSequences = new ConcurrentHashMap<>();
+        presenceVersions = new HashMap<>();
+        partialSnapshots = new HashMap<>();
+        sentMessages = new AtomicLong();
+        tracer = new LatencyTracer();
         connected = false;
     }
 
+    public void setConnectionListener(ConnectionListener connectionListener) {
+        this.connectionListener = connectionListener;
+    }
+
+    // The snapshots sent on connect may have come before the listener, so it gets fresh ones
+    public void setPresenceListener(PresenceListener presenceListener) {
+        this.presenceListener = presenceListener;
+        if (connected) {
+            for (String room : rooms) {
+                outgoingFrames.add(new EncodedFrame(FrameCodec.encodePresenceRequest(room)));
+            }
+        }
+    }
+
+    public void setRoomListListener(RoomListListener roomListListener) {
+        this.roomListListener = roomListListener;
+    }
+
+    public void setRoomListener(RoomListener roomListener) {
+        this.roomListener = roomListener;
+    }
+
     public boolean connect(User user) {
+        currentUser = user;
         try {
             System.out.println("🔗 Connecting to " + serverHost + ":" + serverPort + "...");
-            socket = new Socket(serverHost, serverPort);
-            output = new ObjectOutputStream(socket.getOutputStream());
-            input = new ObjectInputStream(socket.getInputStream());
-            currentUser = user;
-            connected = true;
-
-            // Send user information to server
-            output.writeObject(user);
-            output.flush();
-
+            if (!open()) {
+                return false;
+            }
             System.out.println("✅ Connected successfully as: " + user.getUsername());
-
-            // Start listening for incoming messages
-            Thread listenerThread = new Thread(this::listenForMessages);
-            listenerThread.setDaemon(true);
-            listenerThread.start();
-
             return true;
 
         } catch (IOException e) {
@@ -53,32 +147,367 @@ public class ClientNetwork {
         }
     }
 
+    // Connects and starts the writer and listener threads. Returns false if the server refused
+    // us, network errors are thrown.
+    private boolean open() throws IOException {
+        refusal = null;
+        Socket socket = new Socket(serverHost, serverPort);
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                Constants.WRITE_COALESCE_MAX_BYTES));
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            // Send protocol preamble, user information and where we left off, then wait for the
+            // server to accept us
+            output.write(Handshake.preamble());
+            output.write(FrameCodec.encodeHello(currentUser, lastSequence(Constants.DEFAULT_ROOM)));
+            output.flush();
+
+            ByteBuffer reply = FrameCodec.readFrame(input);
+            byte replyType = reply.get();
+            if (replyType != FrameType.WELCOME) {
+                String reason = replyType == FrameType.ERROR ? FrameCodec.decodeText(reply) : "unexpected reply";
+                System.out.println("❌ Server refused connection: " + reason);
+                refusal = reason;
+                socket.close();
+                return false;
+            }
+
+            // The server puts us in the default room, the others are ours to rejoin
+            for (String room : rooms) {
+                if (!room.equals(Constants.DEFAULT_ROOM)) {
+                    output.write(FrameCodec.encodeRoomJoin(room, lastSequence(room)));
+                }
+            }
+            output.flush();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        FlightEvents.connected(serverHost + ":" + serverPort, currentUser.getUsername(), writerThread != null);
+        this.socket = socket;
+        connected = true;
+        // Every connection starts with fresh snapshots
+        presenceVersions.clear();
+        partialSnapshots.clear();
+
+        // Messages typed while offline are still queued and go out first
+        while (outgoingFrames.remove(END_OF_STREAM)) {
+            // Meant for a writer that had already stopped on a write error
+        }
+
+        // Messages typed in quick succession share a flush
+        writerThread = new Thread(this::writeOutgoingFrames);
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        // Start listening for incoming messages
+        Thread listenerThread = new Thread(this::listenForMessages);
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+
+        return true;
+    }
+
     private void listenForMessages() {
+        ByteBuffer readBuffer = ByteBuffer.allocate(Constants.READ_BUFFER_SIZE);
+        String reason = "closed";
         try {
             while (connected && !socket.isClosed()) {
-                Message message = (Message) input.readObject();
-                if (message != null) {
+                ByteBuffer frame = FrameCodec.readFrame(input, readBuffer);
+                long receivedAtNanos = System.nanoTime();
+                byte type = frame.get();
+                if (type == FrameType.MESSAGE) {
+                    Message message = FrameCodec.decodeMessage(frame);
+                    FlightEvents.messageReceived(message.getSequence(), message.getRoom(),
+                        message.getSender().getUsername(), frame.limit(), receivedAtNanos);
+                    if (!rooms.contains(message.getRoom())) {
+                        // Still on its way when we left the room
+                        continue;
+                    }
+                    if (message.getSequence() != 0) {
+                        if (message.getSequence() <= lastSequence(message.getRoom())) {
+                            // Already shown before the reconnect
+                            continue;
+                        }
+                        lastSequences.put(message.getRoom(), message.getSequence());
+                    }
+                    if (message.getTrace() != null) {
+                        tracer.received(message, receivedAtNanos);
+                    }
+                    incomingMessages.put(message);
+                } else if (type == FrameType.DIRECT) {
+                    Message message = FrameCodec.decodeDirect(frame);
+                    FlightEvents.messageReceived(0, null, message.getSender().getUsername(), frame.limit(),
+                        receivedAtNanos);
                     incomingMessages.put(message);
+                } else if (type == FrameType.TOO_FAR_BEHIND) {
+                    // The numbering starts over with the backlog that follows
+                    String room = FrameCodec.decodeRoom(frame);
+                    lastSequences.remove(room);
+                    Message notice = new Message(new User("System"),
+                        "Some messages were missed while you were disconnected", "SYSTEM");
+                    notice.setRoom(room);
+                    incomingMessages.put(notice);
+                } else if (type == FrameType.PRESENCE_SNAPSHOT) {
+                    onPresenceSnapshot(frame);
+                } else if (type == FrameType.PRESENCE_DELTA) {
+                    onPresenceDelta(frame);
+                } else if (type == FrameType.ROOM_JOIN) {
+                    String room = FrameCodec.decodeRoom(frame);
+                    RoomListener listener = roomListener;
+                    if (listener != null && rooms.contains(room)) {
+                        listener.onRoomJoined(room);
+                    }
+                } else if (type == FrameType.ROOM_LEAVE) {
+                    onRoomLeft(FrameCodec.decodeRoom(frame));
+                } else if (type == FrameType.ROOM_LIST) {
+                    Map<String, Integer> list = FrameCodec.decodeRoomList(frame);
+                    RoomListListener listener = roomListListener;
+                    if (listener != null) {
+                        listener.onRoomList(list);
+                    }
+                } else if (type == FrameType.ERROR || type == FrameType.WARNING) {
+                    incomingMessages.put(notice(FrameCodec.decodeText(frame)));
+                } else if (type == FrameType.THROTTLED) {
+                    long retryAfter = FrameCodec.decodeRetryAfter(frame);
+                    incomingMessages.put(notice(FrameCodec.decodeText(frame)
+                        + ", messages are being dropped. Try again in " + Math.max(1, (retryAfter + 999) / 1000) + "s"));
                 }
             }
-        } catch (IOException | ClassNotFoundException | InterruptedException e) {
+        } catch (IOException | InterruptedException e) {
+            reason = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
             if (connected) {
                 System.out.println("Connection lost: " + e.getMessage());
             }
         } finally {
-            disconnect();
+            FlightEvents.disconnected(serverHost + ":" + serverPort, reason);
+            closeConnection();
+        }
+
+        if (!closed) {
+            reconnect();
+        }
+    }
+
+    private void onRoomLeft(String room) {
+        if (room.equals(Constants.DEFAULT_ROOM) || !rooms.remove(room)) {
+            return;
+        }
+        lastSequences.remove(room);
+        presenceVersions.remove(room);
+        partialSnapshots.remove(room);
+        RoomListener listener = roomListener;
+        if (listener != null) {
+            listener.onRoomLeft(room);
+        }
+    }
+
+    private void onPresenceSnapshot(ByteBuffer frame) throws IOException {
+        String room = FrameCodec.decodeRoom(frame);
+        long version = FrameCodec.decodePresenceVersion(frame);
+        List<User> users = FrameCodec.decodePresenceSnapshot(frame);
+        List<User> earlier = partialSnapshots.remove(room);
+        if (earlier != null) {
+            earlier.addAll(users);
+            users = earlier;
+        }
+        if (FrameCodec.decodeSnapshotContinues(frame)) {
+            partialSnapshots.put(room, users);
+            return;
+        }
+        if (!rooms.contains(room)) {
+            // Left meanwhile
+            return;
+        }
+        presenceVersions.put(room, version);
+        PresenceListener listener = presenceListener;
+        if (listener != null) {
+            listener.onPresenceSnapshot(room, users);
+        }
+    }
+
+    private void onPresenceDelta(ByteBuffer frame) throws IOException {
+        String room = FrameCodec.decodeRoom(frame);
+        long version = FrameCodec.decodePresenceVersion(frame);
+        Long presenceVersion = rooms.contains(room) ? presenceVersions.get(room) : null;
+        if (presenceVersion == null || version <= presenceVersion) {
+            // Not in the room any more, waiting for a snapshot, or already part of the one we have
+            return;
+        }
+        if (version != presenceVersion + 1) {
+            // A delta went missing, e.g. dropped while we were behind; start over from a snapshot
+            presenceVersions.remove(room);
+            outgoingFrames.add(new EncodedFrame(FrameCodec.encodePresenceRequest(room)));
+            return;
+        }
+        presenceVersions.put(room, version);
+        int count = FrameCodec.decodePresenceCount(frame);
+        PresenceListener listener = presenceListener;
+        for (int i = 0; i < count; i++) {
+            byte change = frame.get();
+            User user = FrameCodec.decodePresenceUser(frame);
+            if (listener != null && change <= PresenceChange.STATUS_CHANGED) {
+                listener.onPresenceChanged(room, change, user);
+            }
         }
     }
 
+    private long lastSequence(String room) {
+        return lastSequences.getOrDefault(room, 0L);
+    }
+
+    // Not about any one room, shown wherever the user is
+    private static Message notice(String text) {
+        Message notice = new Message(new User("System"), text, "SYSTEM");
+        notice.setRoom(null);
+        return notice;
+    }
+
+    // Runs on the listener thread of the lost connection, which has nothing else to do
+    private void reconnect() {
+        notifyConnectionState(ConnectionState.RECONNECTING);
+        try {
+            // The old writer has to be gone before a new one takes from the queue
+            writerThread.join();
+
+            for (int attempt = 0; !closed; attempt++) {
+                long delay = reconnectDelay(attempt);
+                System.out.println("🔄 Reconnecting in " + delay + " ms...");
+                Thread.sleep(delay);
+                if (closed) {
+                    return;
+                }
+
+                try {
+                    if (open()) {
+                        System.out.println("✅ Reconnected as: " + currentUser.getUsername());
+                        notifyConnectionState(ConnectionState.CONNECTED);
+                        if (closed) {
+                            // disconnect() ran while we were connecting
+                            closeConnection();
+                        }
+                    } else if (Handshake.isUsernameTaken(refusal)) {
+                        // Our old connection, dropped without the server noticing yet. It goes
+                        // once the server times it out or evicts it.
+                        System.out.println("⏳ The server still holds our previous connection");
+                        continue;
+                    } else {
+                        closed = true;
+                        notifyDisconnected();
+                    }
+                    return;
+                } catch (IOException e) {
+                    System.out.println("❌ Reconnect failed: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Full jitter: anywhere between 0 and the capped exponential delay
+    private static long reconnectDelay(int attempt) {
+        long ceiling = Math.min(Constants.RECONNECT_MAX_DELAY_MILLIS,
+            (long) Constants.RECONNECT_BASE_DELAY_MILLIS << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    // The GUI calls this once a message is on screen, it ends the trace of traced ones
+    public void messageRendered(Message message) {
+        tracer.rendered(message);
+    }
+
+    // Only queues the message, the writer thread sends it. While reconnecting it waits in the
+    // queue for the next connection. Messages with a recipient go to that user only.
     public void sendMessage(Message message) {
-        if (connected && output != null) {
-            try {
-                output.writeObject(message);
-                output.flush();
-            } catch (IOException e) {
+        if (closed) {
+            return;
+        }
+        if (!connected && outgoingFrames.size() >= Constants.OFFLINE_QUEUE_LIMIT) {
+            incomingMessages.add(notice("Not connected, your message could not be queued"));
+            return;
+        }
+        if (message.getRecipient() == null) {
+            message.setTrace(tracer.sample());
+        }
+        EncodedFrame frame = message.getRecipient() != null
+            ? new EncodedFrame(FrameCodec.encodeDirect(message))
+            : FrameCodec.encodeMessage(message);
+        FlightEvents.messageSent(sentMessages.incrementAndGet(), message.getRoom(), message.getRecipient(),
+            frame.length());
+        outgoingFrames.add(frame);
+    }
+
+    // Starts with the room's recent history. While offline the room is joined on reconnect. The
+    // RoomListener hears whether the server let us in.
+    public void joinRoom(String room) {
+        if (rooms.add(room) && connected) {
+            outgoingFrames.add(new EncodedFrame(FrameCodec.encodeRoomJoin(room, lastSequence(room))));
+        }
+    }
+
+    // The default room cannot be left
+    public void leaveRoom(String room) {
+        if (!room.equals(Constants.DEFAULT_ROOM) && rooms.remove(room) && connected) {
+            outgoingFrames.add(new EncodedFrame(FrameCodec.encodeRoomLeave(room)));
+        }
+    }
+
+    // Answered through the RoomListListener, nothing happens while offline
+    public void requestRoomList() {
+        if (connected) {
+            outgoingFrames.add(new EncodedFrame(FrameCodec.encodeRoomListRequest()));
+        }
+    }
+
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
+    // Everyone else sees it as a presence change, dropped while offline
+    public void sendStatus(String status) {
+        if (connected) {
+            outgoingFrames.add(new EncodedFrame(FrameCodec.encodeStatus(status)));
+        }
+    }
+
+    private void writeOutgoingFrames() {
+        CoalescingWriter.FrameSource source = new CoalescingWriter.FrameSource() {
+            // Set once this writer took its END_OF_STREAM. It takes nothing after that, what is
+            // queued later is for the next connection.
+            private boolean ended;
+
+            @Override
+            public EncodedFrame take() throws InterruptedException {
+                return ended ? null : unlessEnd(outgoingFrames.take());
+            }
+
+            @Override
+            public EncodedFrame poll(long timeoutNanos) throws InterruptedException {
+                return ended ? null : unlessEnd(outgoingFrames.poll(timeoutNanos, TimeUnit.NANOSECONDS));
+            }
+
+            private EncodedFrame unlessEnd(EncodedFrame frame) {
+                if (frame == END_OF_STREAM) {
+                    ended = true;
+                    return null;
+                }
+                return frame;
+            }
+        };
+
+        try {
+            new CoalescingWriter(source, output, Constants.WRITE_COALESCE_MAX_BYTES,
+                Constants.WRITE_COALESCE_MAX_DELAY_MICROS).writeAll();
+        } catch (IOException e) {
+            if (connected) {
                 System.out.println("Failed to send message: " + e.getMessage());
-                disconnect();
+                // The listener notices the closed socket and reconnects
+                closeSocket();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -86,28 +515,54 @@ public class ClientNetwork {
         return incomingMessages.take();
     }
 
-    public void disconnect() {
+    // Stops the writer and closes the socket, queued messages stay for the next connection
+    private void closeConnection() {
         connected = false;
+        outgoingFrames.add(END_OF_STREAM);
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        // Closing the socket closes both streams, closing the buffered output first would
+        // try to flush into a connection that may already be gone
         try {
-            if (input != null)
-                input.close();
-            if (output != null)
-                output.close();
             if (socket != null)
                 socket.close();
         } catch (IOException e) {
             System.out.println("Error during disconnect");
         }
+    }
+
+    public void disconnect() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeConnection();
+        notifyDisconnected();
+    }
 
+    private void notifyDisconnected() {
         // Add a system message indicating disconnect
-        try {
-            incomingMessages.put(new Message(currentUser, "Disconnected from server", "SYSTEM"));
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        Message notice = new Message(currentUser, "Disconnected from server", "SYSTEM");
+        notice.setRoom(null);
+        incomingMessages.add(notice);
+        notifyConnectionState(ConnectionState.DISCONNECTED);
+    }
+
+    private void notifyConnectionState(ConnectionState state) {
+        ConnectionListener listener = connectionListener;
+        if (listener != null) {
+            listener.onConnectionStateChanged(state);
         }
     }
 
     public boolean isConnected() {
         return connected && socket != null && !socket.isClosed();
     }
+
+    // True once the client has stopped for good, not while it is reconnecting
+    public boolean isClosed() {
+        return closed;
+    }
 }
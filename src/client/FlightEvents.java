@@ -0,0 +1,119 @@
+package client;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// JDK Flight Recorder events of the client, the counterpart to the server's. Received messages
+// carry the server's sequence number, sent ones a number of their own since the server has not
+// numbered them yet. Nothing is recorded unless a recording enables them.
+final class FlightEvents {
+    private FlightEvents() {
+    }
+
+    @Name("chat.client.MessageSent")
+    @Label("Message Sent")
+    @Category({"Chat", "Client"})
+    @StackTrace(false)
+    static final class MessageSent extends Event {
+        @Label("Message Id")
+        long messageId;
+        @Label("Room")
+        String room;
+        @Label("Recipient")
+        String recipient;
+        @Label("Size")
+        @DataAmount
+        int size;
+    }
+
+    @Name("chat.client.MessageReceived")
+    @Label("Message Received")
+    @Category({"Chat", "Client"})
+    @StackTrace(false)
+    static final class MessageReceived extends Event {
+        @Label("Sequence")
+        long sequence;
+        @Label("Room")
+        String room;
+        @Label("Sender")
+        String sender;
+        @Label("Size")
+        @DataAmount
+        int size;
+        @Label("Decode Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long decodeTime;
+    }
+
+    @Name("chat.client.Connected")
+    @Label("Connected")
+    @Category({"Chat", "Client"})
+    @StackTrace(false)
+    static final class Connected extends Event {
+        @Label("Server")
+        String server;
+        @Label("User")
+        String user;
+        @Label("Reconnect")
+        boolean reconnect;
+    }
+
+    @Name("chat.client.Disconnected")
+    @Label("Disconnected")
+    @Category({"Chat", "Client"})
+    @StackTrace(false)
+    static final class Disconnected extends Event {
+        @Label("Server")
+        String server;
+        @Label("Reason")
+        String reason;
+    }
+
+    static void messageSent(long messageId, String room, String recipient, int size) {
+        MessageSent event = new MessageSent();
+        if (event.shouldCommit()) {
+            event.messageId = messageId;
+            event.room = room;
+            event.recipient = recipient;
+            event.size = size;
+            event.commit();
+        }
+    }
+
+    // Decode time runs from when the frame was read until now. Direct messages have no room.
+    static void messageReceived(long sequence, String room, String sender, int size, long receivedAtNanos) {
+        MessageReceived event = new MessageReceived();
+        if (event.shouldCommit()) {
+            event.sequence = sequence;
+            event.room = room;
+            event.sender = sender;
+            event.size = size;
+            event.decodeTime = System.nanoTime() - receivedAtNanos;
+            event.commit();
+        }
+    }
+
+    static void connected(String server, String user, boolean reconnect) {
+        Connected event = new Connected();
+        if (event.shouldCommit()) {
+            event.server = server;
+            event.user = user;
+            event.reconnect = reconnect;
+            event.commit();
+        }
+    }
+
+    static void disconnected(String server, String reason) {
+        Disconnected event = new Disconnected();
+        if (event.shouldCommit()) {
+            event.server = server;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+}
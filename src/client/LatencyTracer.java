@@ -0,0 +1,75 @@
+package client;
+
+import model.Message;
+import model.Trace;
+import utils.Constants;
+import utils.LatencyHistogram;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The client's end of latency tracing. Picks the messages that get a trace header and times two
+// stages on this process's clock: from sending a message until the server's copy of it comes
+// back, and from receiving any traced message until it is on screen. Percentiles over the last
+// interval are printed every chat.trace.reportMillis.
+class LatencyTracer {
+    // Tells our own messages from everyone else's, they carry it in the high half of their id
+    private final long origin;
+    private final AtomicLong traced;
+    private final LatencyHistogram roundTrip;
+    private final LatencyHistogram render;
+    private final long reportNanos;
+    private final AtomicLong reportedAtNanos;
+
+    LatencyTracer() {
+        this.origin = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+        this.traced = new AtomicLong();
+        this.roundTrip = new LatencyHistogram();
+        this.render = new LatencyHistogram();
+        this.reportNanos = TimeUnit.MILLISECONDS.toNanos(Constants.TRACE_REPORT_MILLIS);
+        this.reportedAtNanos = new AtomicLong(System.nanoTime());
+    }
+
+    // A header for a message about to be sent, or null if it is not sampled
+    Trace sample() {
+        if (Constants.TRACE_SAMPLE_RATE <= 0 || ThreadLocalRandom.current().nextDouble() >= Constants.TRACE_SAMPLE_RATE) {
+            return null;
+        }
+        return new Trace(origin << 32 | (traced.incrementAndGet() & 0xFFFFFFFFL), System.nanoTime());
+    }
+
+    void received(Message message, long receivedAtNanos) {
+        Trace trace = message.getTrace();
+        trace.setReceivedNanos(receivedAtNanos);
+        if (trace.getId() >>> 32 == origin) {
+            roundTrip.record(receivedAtNanos - trace.getSentNanos());
+        }
+        reportIfDue();
+    }
+
+    void rendered(Message message) {
+        Trace trace = message.getTrace();
+        if (trace != null && trace.getReceivedNanos() != 0) {
+            render.record(System.nanoTime() - trace.getReceivedNanos());
+            reportIfDue();
+        }
+    }
+
+    // Whoever records first after the interval prints, the others carry on
+    private void reportIfDue() {
+        long now = System.nanoTime();
+        long reportedAt = reportedAtNanos.get();
+        if (now - reportedAt < reportNanos || !reportedAtNanos.compareAndSet(reportedAt, now)) {
+            return;
+        }
+        System.out.println("📈 Traced message latency, round trip " + summary(roundTrip.intervalCounts())
+            + ", receive to screen " + summary(render.intervalCounts()));
+    }
+
+    private static String summary(long[] counts) {
+        return "n=" + LatencyHistogram.total(counts)
+            + " p50=" + LatencyHistogram.percentile(counts, 50) / 1000 + "us"
+            + " p99=" + LatencyHistogram.percentile(counts, 99) / 1000 + "us"
+            + " max=" + LatencyHistogram.max(counts) / 1000 + "us";
+    }
+}
@@ -3,6 +3,7 @@ package gui;
 import client.ClientNetwork;
 import model.Message;
 import model.User;
+import protocol.PresenceChange;
 import utils.Constants;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -10,17 +11,31 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class ChatFrame extends JFrame {
     private ClientNetwork clientNetwork;
     private User currentUser;
 
-    private MessagePanel messagePanel;
+    // One message panel and one member list per room, and per direct conversation under "@" and
+    // the other user's name. Only touched on the event thread.
+    private final transient Map<String, MessagePanel> messagePanels = new HashMap<>();
+    private final transient Map<String, DefaultListModel<User>> userListModels = new HashMap<>();
+    private CardLayout messageCards;
+    private JPanel messageCardPanel;
+    private String currentRoom = Constants.DEFAULT_ROOM;
+    // Asked for in the join dialog, shown once the server lets us in
+    private String joiningRoom;
+    private JComboBox<String> roomSelector;
+    private JButton joinRoomButton;
+    private JButton leaveRoomButton;
     private JTextField messageField;
     private JButton sendButton;
     private JLabel statusLabel;
-    private JList<String> userList;
-    private DefaultListModel<String> userListModel;
+    private JComboBox<String> statusSelector;
+    private JList<User> userList;
     private JLabel onlineCountLabel;
 
     public ChatFrame(User user, ClientNetwork clientNetwork) {
@@ -31,17 +46,51 @@ public class ChatFrame extends JFrame {
         layoutComponents();
         setupEventHandlers();
         applyModernStyling();
+        clientNetwork.setConnectionListener(state -> SwingUtilities.invokeLater(() -> showConnectionState(state)));
+        clientNetwork.setPresenceListener(new ClientNetwork.PresenceListener() {
+            @Override
+            public void onPresenceSnapshot(String room, List<User> users) {
+                SwingUtilities.invokeLater(() -> showUserList(room, users));
+            }
+
+            @Override
+            public void onPresenceChanged(String room, byte change, User user) {
+                SwingUtilities.invokeLater(() -> applyPresenceChange(room, change, user));
+            }
+        });
+        clientNetwork.setRoomListListener(rooms -> SwingUtilities.invokeLater(() -> promptJoinRoom(rooms)));
+        clientNetwork.setRoomListener(new ClientNetwork.RoomListener() {
+            @Override
+            public void onRoomJoined(String room) {
+                SwingUtilities.invokeLater(() -> roomJoined(room));
+            }
+
+            @Override
+            public void onRoomLeft(String room) {
+                SwingUtilities.invokeLater(() -> removeRoom(room));
+            }
+        });
         startMessageListener();
 
-        setTitle("ChatApp • " + user.getUsername());
+        showRoom(currentRoom);
         setSize(Constants.WINDOW_WIDTH, Constants.WINDOW_HEIGHT);
         setLocationRelativeTo(null);
         setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
     }
 
     private void initializeComponents() {
-        // Message panel
-        messagePanel = new MessagePanel(currentUser);
+        // Message panels, one card per room
+        messageCards = new CardLayout();
+        messageCardPanel = new JPanel(messageCards);
+        messageCardPanel.setBackground(Constants.CHAT_BACKGROUND);
+
+        roomSelector = new JComboBox<>();
+        roomSelector.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        joinRoomButton = new JButton("Join...");
+        leaveRoomButton = new JButton("Leave");
+        for (String room : clientNetwork.getRooms()) {
+            addRoom(room);
+        }
 
         // Input components
         messageField = new JTextField();
@@ -53,12 +102,25 @@ public class ChatFrame extends JFrame {
         statusLabel = new JLabel("Online • " + currentUser.getUsername());
         statusLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
 
-        // User list
-        userListModel = new DefaultListModel<>();
-        userList = new JList<>(userListModel);
+        statusSelector = new JComboBox<>(new String[] { "Online", "Away", "Busy" });
+        statusSelector.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+
+        // User list, showing the current room's members
+        userList = new JList<>(userListModels.get(currentRoom));
         userList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         userList.setFont(new Font("Segoe UI", Font.PLAIN, 12));
         userList.setBackground(Constants.SIDEBAR_BACKGROUND);
+        userList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                    boolean isSelected, boolean cellHasFocus) {
+                User user = (User) value;
+                String text = "Online".equals(user.getStatus())
+                        ? user.getUsername()
+                        : user.getUsername() + " • " + user.getStatus();
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
 
         onlineCountLabel = new JLabel("Online • 1");
         onlineCountLabel.setFont(new Font("Segoe UI", Font.BOLD, 12));
@@ -92,7 +154,11 @@ public class ChatFrame extends JFrame {
 
         JPanel userPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
         userPanel.setOpaque(false);
+        userPanel.add(roomSelector);
+        userPanel.add(joinRoomButton);
+        userPanel.add(leaveRoomButton);
         userPanel.add(statusLabel);
+        userPanel.add(statusSelector);
 
         headerPanel.add(titleLabel, BorderLayout.WEST);
         headerPanel.add(userPanel, BorderLayout.EAST);
@@ -108,7 +174,7 @@ public class ChatFrame extends JFrame {
         JPanel messageWrapper = new JPanel(new BorderLayout());
         messageWrapper.setBackground(Constants.CHAT_BACKGROUND);
         messageWrapper.setBorder(new EmptyBorder(5, 5, 5, 5));
-        messageWrapper.add(messagePanel, BorderLayout.CENTER);
+        messageWrapper.add(messageCardPanel, BorderLayout.CENTER);
 
         mainPanel.add(messageWrapper, BorderLayout.CENTER);
 
@@ -126,7 +192,7 @@ public class ChatFrame extends JFrame {
                 BorderFactory.createMatteBorder(0, 1, 0, 0, Constants.BORDER_LIGHT),
                 BorderFactory.createEmptyBorder(20, 15, 20, 15)));
 
-        JLabel sidebarTitle = new JLabel("Online Users");
+        JLabel sidebarTitle = new JLabel("In this room");
         sidebarTitle.setFont(new Font("Segoe UI", Font.BOLD, 16));
         sidebarTitle.setForeground(Constants.TEXT_PRIMARY);
         sidebarTitle.setBorder(new EmptyBorder(0, 0, 15, 0));
@@ -200,6 +266,30 @@ public class ChatFrame extends JFrame {
     private void setupEventHandlers() {
         sendButton.addActionListener(this::sendMessage);
         messageField.addActionListener(this::sendMessage);
+        statusSelector.addActionListener(e -> clientNetwork.sendStatus((String) statusSelector.getSelectedItem()));
+        roomSelector.addActionListener(e -> {
+            if (roomSelector.getSelectedItem() != null) {
+                showRoom((String) roomSelector.getSelectedItem());
+            }
+        });
+        joinRoomButton.addActionListener(e -> {
+            // The dialog opens once the server has listed its rooms
+            if (clientNetwork.isConnected()) {
+                clientNetwork.requestRoomList();
+            } else {
+                promptJoinRoom(Map.of());
+            }
+        });
+        leaveRoomButton.addActionListener(e -> leaveRoom(currentRoom));
+        userList.addMouseListener(new java.awt.event.MouseAdapter() {
+            @Override
+            public void mouseClicked(java.awt.event.MouseEvent e) {
+                User user = userList.getSelectedValue();
+                if (e.getClickCount() == 2 && user != null) {
+                    openDirect(user.getUsername());
+                }
+            }
+        });
 
         addWindowListener(new WindowAdapter() {
             @Override
@@ -212,8 +302,15 @@ public class ChatFrame extends JFrame {
     private void sendMessage(ActionEvent e) {
         String text = messageField.getText().trim();
 
-        if (!text.isEmpty() && clientNetwork.isConnected()) {
+        // Sent as soon as the connection is back if it is currently lost
+        if (!text.isEmpty() && !clientNetwork.isClosed()) {
             Message message = new Message(currentUser, text, "TEXT");
+            if (isDirect(currentRoom)) {
+                message.setRoom(null);
+                message.setRecipient(currentRoom.substring(1));
+            } else {
+                message.setRoom(currentRoom);
+            }
             clientNetwork.sendMessage(message);
             messageField.setText("");
         }
@@ -221,91 +318,205 @@ public class ChatFrame extends JFrame {
 
     private void startMessageListener() {
         Thread messageListener = new Thread(() -> {
-            while (clientNetwork.isConnected()) {
+            // Keeps going while the network reconnects
+            while (!clientNetwork.isClosed()) {
                 try {
                     Message message = clientNetwork.getNextMessage();
 
-                    // Check if this is a user list update message
-                    if (message.getMessageType().equals("SYSTEM") &&
-                            message.getContent().startsWith("USER_LIST_UPDATE:")) {
-
-                        SwingUtilities.invokeLater(() -> {
-                            updateUserListFromMessage(message);
-                        });
-                    }
-                    // Handle user join/leave messages
-                    else if (message.getMessageType().equals("USER_JOIN") ||
-                            message.getMessageType().equals("USER_LEAVE")) {
-
-                        SwingUtilities.invokeLater(() -> {
-                            handleUserJoinLeave(message);
-                            messagePanel.addMessage(message); // Also show in chat
-                        });
-                    } else {
-                        // Regular message
-                        messagePanel.addMessage(message);
-                    }
+                    // The user list follows presence updates, join/leave messages are only shown
+                    SwingUtilities.invokeLater(() -> messagePanelFor(message).addMessage(message));
 
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break;
                 }
             }
-
-            SwingUtilities.invokeLater(() -> {
-                if (!clientNetwork.isConnected()) {
-                    JOptionPane.showMessageDialog(this,
-                            "Disconnected from server",
-                            "Connection Lost",
-                            JOptionPane.WARNING_MESSAGE);
-                    disconnect();
-                }
-            });
         });
 
         messageListener.setDaemon(true);
         messageListener.start();
     }
 
-    private void updateUserListFromMessage(Message message) {
-        String content = message.getContent();
-        if (content.startsWith("USER_LIST_UPDATE:")) {
-            String userListStr = content.substring("USER_LIST_UPDATE:".length());
-            String[] usernames = userListStr.split(",");
+    // The window stays open through reconnects, the header shows where the connection is
+    private void showConnectionState(ClientNetwork.ConnectionState state) {
+        switch (state) {
+            case CONNECTED:
+                statusLabel.setText("Online • " + currentUser.getUsername());
+                statusLabel.setForeground(Constants.TEXT_PRIMARY);
+                break;
+            case RECONNECTING:
+                statusLabel.setText("Reconnecting...");
+                statusLabel.setForeground(Constants.TEXT_SECONDARY);
+                break;
+            case DISCONNECTED:
+                statusLabel.setText("Offline");
+                statusLabel.setForeground(Constants.TEXT_ACCENT);
+                messageField.setEnabled(false);
+                sendButton.setEnabled(false);
+                break;
+        }
+    }
 
-            userListModel.clear();
+    private void addRoom(String room) {
+        if (messagePanels.containsKey(room)) {
+            return;
+        }
+        MessagePanel messagePanel = new MessagePanel(currentUser);
+        messagePanel.setRenderListener(clientNetwork::messageRendered);
+        messagePanels.put(room, messagePanel);
+        userListModels.put(room, new DefaultListModel<>());
+        messageCardPanel.add(messagePanel, room);
+        roomSelector.addItem(room);
+        if (isDirect(room)) {
+            userListModels.get(room).addElement(new User(room.substring(1)));
+        }
+    }
 
-            // Add all users except the current user to the list
-            for (String username : usernames) {
-                if (!username.trim().isEmpty() && !username.equals(currentUser.getUsername())) {
-                    userListModel.addElement(username.trim());
-                }
+    private static boolean isDirect(String room) {
+        return room.startsWith("@");
+    }
+
+    private void openDirect(String username) {
+        addRoom("@" + username);
+        roomSelector.setSelectedItem("@" + username);
+    }
+
+    private void showRoom(String room) {
+        currentRoom = room;
+        messageCards.show(messageCardPanel, room);
+        userList.setModel(userListModels.get(room));
+        leaveRoomButton.setEnabled(!room.equals(Constants.DEFAULT_ROOM));
+        setTitle("ChatApp • " + currentUser.getUsername() + " • " + (isDirect(room) ? room : "#" + room));
+        updateOnlineCount();
+    }
+
+    // Existing rooms are offered, typing a new name creates one
+    private void promptJoinRoom(Map<String, Integer> rooms) {
+        JComboBox<String> names = new JComboBox<>();
+        names.setEditable(true);
+        for (Map.Entry<String, Integer> room : rooms.entrySet()) {
+            if (!messagePanels.containsKey(room.getKey())) {
+                names.addItem(room.getKey());
             }
+        }
+        int choice = JOptionPane.showConfirmDialog(this, names, "Join room", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE);
+        Object selected = names.getEditor().getItem();
+        String room = selected == null ? "" : selected.toString().trim();
+        if (choice != JOptionPane.OK_OPTION || room.isEmpty()) {
+            return;
+        }
+        if (room.length() > Constants.MAX_ROOM_NAME_LENGTH) {
+            JOptionPane.showMessageDialog(this, "Room names are at most " + Constants.MAX_ROOM_NAME_LENGTH
+                    + " characters long", "Join room", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        if (messagePanels.containsKey(room)) {
+            roomSelector.setSelectedItem(room);
+            return;
+        }
+        // The tab opens when the server confirms the join, a refused one never gets one
+        joiningRoom = room;
+        clientNetwork.joinRoom(room);
+    }
 
-            updateOnlineCount();
+    private void roomJoined(String room) {
+        addRoom(room);
+        if (room.equals(joiningRoom)) {
+            joiningRoom = null;
+            roomSelector.setSelectedItem(room);
         }
     }
 
-    private void handleUserJoinLeave(Message message) {
-        String username = message.getSender().getUsername();
+    // Closing a direct conversation only closes it here, the next message opens it again
+    private void leaveRoom(String room) {
+        if (room.equals(Constants.DEFAULT_ROOM)) {
+            return;
+        }
+        if (!isDirect(room)) {
+            clientNetwork.leaveRoom(room);
+        }
+        removeRoom(room);
+    }
 
-        switch (message.getMessageType()) {
-            case "USER_JOIN":
-                if (!username.equals(currentUser.getUsername()) && !userListModel.contains(username)) {
-                    userListModel.addElement(username);
-                    updateOnlineCount();
+    // Also for rooms the server did not let us into
+    private void removeRoom(String room) {
+        if (room.equals(joiningRoom)) {
+            joiningRoom = null;
+        }
+        MessagePanel messagePanel = messagePanels.remove(room);
+        if (messagePanel == null) {
+            return;
+        }
+        if (room.equals(currentRoom)) {
+            roomSelector.setSelectedItem(Constants.DEFAULT_ROOM);
+        }
+        messageCardPanel.remove(messagePanel);
+        userListModels.remove(room);
+        roomSelector.removeItem(room);
+    }
+
+    // Direct messages open their conversation if it is not open yet, notices without a room
+    // go wherever the user is
+    private MessagePanel messagePanelFor(Message message) {
+        if (message.getRecipient() != null) {
+            String other = message.getSender().getUsername().equals(currentUser.getUsername())
+                    ? message.getRecipient()
+                    : message.getSender().getUsername();
+            addRoom("@" + other);
+            return messagePanels.get("@" + other);
+        }
+        MessagePanel messagePanel = message.getRoom() == null ? null : messagePanels.get(message.getRoom());
+        return messagePanel != null ? messagePanel : messagePanels.get(currentRoom);
+    }
+
+    private void showUserList(String room, List<User> users) {
+        DefaultListModel<User> userListModel = userListModels.get(room);
+        if (userListModel == null) {
+            return;
+        }
+        userListModel.clear();
+
+        // Add all users except the current user to the list
+        for (User user : users) {
+            if (!user.getUsername().equals(currentUser.getUsername())) {
+                userListModel.addElement(user);
+            }
+        }
+
+        updateOnlineCount();
+    }
+
+    private void applyPresenceChange(String room, byte change, User user) {
+        DefaultListModel<User> userListModel = userListModels.get(room);
+        if (userListModel == null || user.getUsername().equals(currentUser.getUsername())) {
+            return;
+        }
+
+        int index = userListModel.indexOf(user);
+        switch (change) {
+            case PresenceChange.JOINED:
+                if (index < 0) {
+                    userListModel.addElement(user);
+                }
+                break;
+            case PresenceChange.LEFT:
+                if (index >= 0) {
+                    userListModel.remove(index);
                 }
                 break;
-            case "USER_LEAVE":
-                userListModel.removeElement(username);
-                updateOnlineCount();
+            case PresenceChange.STATUS_CHANGED:
+                if (index >= 0) {
+                    userListModel.set(index, user);
+                }
                 break;
         }
+        updateOnlineCount();
     }
 
     private void updateOnlineCount() {
         // +1 for current user
-        int totalUsers = userListModel.size() + 1;
+        int totalUsers = userListModels.get(currentRoom).size() + 1;
         onlineCountLabel.setText("Online • " + totalUsers);
     }
 
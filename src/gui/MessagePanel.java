@@ -7,10 +7,13 @@ import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.time.format.DateTimeFormatter;
+import java.util.function.Consumer;
 
 public class MessagePanel extends JPanel {
     private JPanel messagesContainer;
     private User currentUser;
+    // Told about every message once it is shown
+    private transient Consumer<Message> renderListener;
     
     public MessagePanel(User currentUser) {
         this.currentUser = currentUser;
@@ -44,15 +47,29 @@ public class MessagePanel extends JPanel {
             
             JPanel messageBubble = createMessageBubble(message, isOwnMessage, isSystemMessage);
             messagesContainer.add(messageBubble);
+            
+            // Keep the window's memory flat in long sessions
+            while (messagesContainer.getComponentCount() > Constants.MAX_DISPLAYED_MESSAGES) {
+                messagesContainer.remove(0);
+            }
             messagesContainer.revalidate();
             messagesContainer.repaint();
             
             // Auto-scroll to bottom
             JViewport viewport = (JViewport) messagesContainer.getParent().getParent();
             viewport.setViewPosition(new Point(0, messagesContainer.getHeight()));
+            
+            Consumer<Message> listener = renderListener;
+            if (listener != null) {
+                listener.accept(message);
+            }
         });
     }
     
+    public void setRenderListener(Consumer<Message> renderListener) {
+        this.renderListener = renderListener;
+    }
+    
     private JPanel createMessageBubble(Message message, boolean isOwnMessage, boolean isSystemMessage) {
         JPanel bubblePanel = new JPanel();
         bubblePanel.setLayout(new BorderLayout());
@@ -1,5 +1,6 @@
 package model;
 
+import utils.Constants;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -11,6 +12,14 @@ public class Message implements Serializable {
     private String content;
     private LocalDateTime timestamp;
     private String messageType;
+    // Assigned by the server when the message is broadcast, 0 until then
+    private long sequence;
+    // Every message belongs to one room, null for notices the client shows wherever the user is
+    private String room = Constants.DEFAULT_ROOM;
+    // Set instead of the room for a direct message
+    private String recipient;
+    // Only on messages sampled for latency tracing
+    private Trace trace;
 
     public Message(User sender, String content, String messageType) {
         this.sender = sender;
@@ -19,6 +28,13 @@ public class Message implements Serializable {
         this.timestamp = LocalDateTime.now();
     }
 
+    public Message(User sender, String content, String messageType, LocalDateTime timestamp) {
+        this.sender = sender;
+        this.content = content;
+        this.messageType = messageType;
+        this.timestamp = timestamp;
+    }
+
     // Getters
     public User getSender() {
         return sender;
@@ -36,6 +52,38 @@ public class Message implements Serializable {
         return messageType;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public void setRoom(String room) {
+        this.room = room;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public void setRecipient(String recipient) {
+        this.recipient = recipient;
+    }
+
+    public Trace getTrace() {
+        return trace;
+    }
+
+    public void setTrace(Trace trace) {
+        this.trace = trace;
+    }
+
     public String getFormattedTimestamp() {
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss");
         return timestamp.format(formatter);
@@ -46,9 +94,10 @@ public class Message implements Serializable {
             case "SYSTEM":
                 return "[System] " + content;
             case "USER_JOIN":
-                return "→ " + sender.getUsername() + " joined the chat";
+                // The content says who, it may stand for several users
+                return "→ " + content;
             case "USER_LEAVE":
-                return "← " + sender.getUsername() + " left the chat";
+                return "← " + content;
             default:
                 return "[" + sender.getUsername() + "]: " + content;
         }
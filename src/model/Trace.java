@@ -0,0 +1,37 @@
+package model;
+
+import java.io.Serializable;
+
+// Optional header on a sampled message, used to see where its latency goes. The times are
+// System.nanoTime() values, so they only compare within one process: sentNanos is on the
+// sending client's clock, receivedNanos on the receiving one's. The server times its own stages
+// on its clock without touching the header.
+public class Trace implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // The sending client's instance in the high half, a count in the low half
+    private final long id;
+    private final long sentNanos;
+    private long receivedNanos;
+
+    public Trace(long id, long sentNanos) {
+        this.id = id;
+        this.sentNanos = sentNanos;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getSentNanos() {
+        return sentNanos;
+    }
+
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    public void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+}
@@ -0,0 +1,69 @@
+package protocol;
+
+import utils.Constants;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Direct buffers in power-of-two size classes, handed out again once released instead of
+// being allocated per frame. Larger requests get a heap buffer that is never pooled.
+public class BufferPool {
+    private static final int MIN_SHIFT = 6;
+
+    public static final BufferPool SHARED = new BufferPool(Constants.BUFFER_POOL_MAX_BUFFER_SIZE,
+            Constants.BUFFER_POOL_BUFFERS_PER_CLASS);
+
+    private final ArrayBlockingQueue<ByteBuffer>[] sizeClasses;
+    private final AtomicLong allocated;
+
+    public BufferPool(int maxBufferSize, int buffersPerClass) {
+        int classes = Math.max(1, shiftFor(maxBufferSize) - MIN_SHIFT + 1);
+        sizeClasses = newSizeClasses(classes);
+        for (int i = 0; i < classes; i++) {
+            sizeClasses[i] = new ArrayBlockingQueue<>(buffersPerClass);
+        }
+        allocated = new AtomicLong();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayBlockingQueue<ByteBuffer>[] newSizeClasses(int count) {
+        return (ArrayBlockingQueue<ByteBuffer>[]) new ArrayBlockingQueue<?>[count];
+    }
+
+    // Position 0, limit set to the requested size
+    public ByteBuffer acquire(int size) {
+        int sizeClass = shiftFor(size) - MIN_SHIFT;
+        if (sizeClass >= sizeClasses.length) {
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = sizeClasses[sizeClass].poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    // The caller must not touch the buffer afterwards
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        int sizeClass = shiftFor(buffer.capacity()) - MIN_SHIFT;
+        if (sizeClass < sizeClasses.length) {
+            // Dropped for the GC when the class is already full
+            sizeClasses[sizeClass].offer(buffer);
+        }
+    }
+
+    // Direct buffers created so far, flat at steady state when the pool is big enough
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    private static int shiftFor(int size) {
+        return Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+    }
+}
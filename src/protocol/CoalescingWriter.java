@@ -0,0 +1,56 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// Writes queued frames with one flush per batch instead of one per frame. Whatever is already
+// waiting goes out together; after a burst the writer lingers up to maxDelay for stragglers.
+// A single frame in a quiet connection is flushed immediately.
+public class CoalescingWriter {
+    public interface FrameSource {
+        // Blocks for the next frame, null once the source is closed and drained
+        EncodedFrame take() throws InterruptedException;
+
+        // Waits at most timeoutNanos, 0 means just check
+        EncodedFrame poll(long timeoutNanos) throws InterruptedException;
+    }
+
+    private final FrameSource source;
+    private final OutputStream out;
+    private final int maxBytes;
+    private final long maxDelayNanos;
+    private final byte[] scratch;
+
+    public CoalescingWriter(FrameSource source, OutputStream out, int maxBytes, long maxDelayMicros) {
+        this.source = source;
+        this.out = out;
+        this.maxBytes = maxBytes;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.scratch = new byte[8192];
+    }
+
+    // Returns when the source is closed and everything has been written. The writer owns one
+    // reference to every frame it takes and releases it once the frame is written.
+    public void writeAll() throws IOException, InterruptedException {
+        EncodedFrame frame;
+        while ((frame = source.take()) != null) {
+            int frames = 0;
+            long bytes = 0;
+            do {
+                frame.writeTo(out, scratch);
+                frames++;
+                bytes += frame.length();
+                frame.release();
+                if (bytes >= maxBytes) {
+                    break;
+                }
+                frame = source.poll(0);
+                if (frame == null && frames > 1 && maxDelayNanos > 0) {
+                    frame = source.poll(maxDelayNanos);
+                }
+            } while (frame != null);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+// Bytes of one encoded frame, shared as-is by every connection it is sent to. Pooled frames
+// are reference counted: whoever keeps a frame beyond the call that handed it over takes a
+// reference with retain() and gives it back with release(). The buffer returns to its pool
+// when the last reference is released. Heap frames without a pool are left to the GC.
+public final class EncodedFrame {
+    private static final AtomicIntegerFieldUpdater<EncodedFrame> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(EncodedFrame.class, "references");
+
+    private final ByteBuffer buffer;
+    private final BufferPool pool;
+    private volatile int references;
+    // For a traced message, System.nanoTime() when the server started sending it out. Set
+    // before the frame is handed to other threads.
+    private long tracedAtNanos;
+
+    // Takes ownership of the array, callers must not modify it afterwards
+    public EncodedFrame(byte[] bytes) {
+        this(ByteBuffer.wrap(bytes), null);
+    }
+
+    // The frame is the buffer's bytes from 0 to its limit, the caller holds the first reference
+    public EncodedFrame(ByteBuffer buffer, BufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+        this.references = 1;
+    }
+
+    public long getTracedAtNanos() {
+        return tracedAtNanos;
+    }
+
+    public void setTracedAtNanos(long tracedAtNanos) {
+        this.tracedAtNanos = tracedAtNanos;
+    }
+
+    public int length() {
+        return buffer.limit();
+    }
+
+    // The frame type byte after the length prefix; for a batch of frames, the first one's
+    public byte type() {
+        return buffer.get(FrameCodec.HEADER_SIZE);
+    }
+
+    // Each caller gets its own read-only view with an independent position
+    public ByteBuffer asBuffer() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public void copyTo(ByteBuffer target) {
+        target.put(target.position(), buffer, 0, length());
+        target.position(target.position() + length());
+    }
+
+    // Direct buffers are copied through the scratch array so nothing is allocated per write
+    public void writeTo(OutputStream out, byte[] scratch) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset(), length());
+            return;
+        }
+        for (int offset = 0; offset < length(); offset += scratch.length) {
+            int chunk = Math.min(scratch.length, length() - offset);
+            buffer.get(offset, scratch, 0, chunk);
+            out.write(scratch, 0, chunk);
+        }
+    }
+
+    public EncodedFrame retain() {
+        int current;
+        do {
+            current = references;
+            if (current <= 0) {
+                throw new IllegalStateException("Frame already released");
+            }
+        } while (!REFERENCES.compareAndSet(this, current, current + 1));
+        return this;
+    }
+
+    public void release() {
+        int remaining = REFERENCES.decrementAndGet(this);
+        if (remaining == 0 && pool != null) {
+            pool.release(buffer);
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Frame released too often");
+        }
+    }
+}
@@ -0,0 +1,596 @@
+package protocol;
+
+import model.Message;
+import model.Trace;
+import model.User;
+import utils.Constants;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Frame layout: int32 length | type byte | body. Strings are a varint length followed by UTF-8,
+// timestamps are epoch millis as a varint. MESSAGE frames start with the sequence number the
+// server gave them, 0 on the way in. Everything that belongs to a room starts with its name.
+public class FrameCodec {
+    public static final int HEADER_SIZE = 4;
+    // Starts the optional trace header after a message's content: trace id | sent nanos.
+    // Decoders that predate it stop at the content and never see it.
+    static final byte TRACE_TAG = 1;
+    // Longest varint a long can take
+    private static final int MAX_VARLONG_SIZE = 10;
+    // Largest MESSAGE body a client may send. The server puts its own sequence number in front
+    // of the body, and the frame must still fit then.
+    public static final int MAX_MESSAGE_BODY_SIZE = Constants.MAX_FRAME_SIZE - 1 - MAX_VARLONG_SIZE;
+    // Longest content of a DIRECT frame from a client. The server sends it on with the sender's
+    // own name, so the frame must fit with the longest names in both places.
+    public static final int MAX_DIRECT_CONTENT_SIZE = Constants.MAX_FRAME_SIZE - 1
+        - 2 * (MAX_VARLONG_SIZE + Constants.MAX_USERNAME_BYTES) - 1 - 2 * MAX_VARLONG_SIZE;
+
+    // Message types in wire order, the index is the kind byte
+    private static final String[] MESSAGE_KINDS = {
+        Constants.MESSAGE_TYPE_TEXT,
+        Constants.MESSAGE_TYPE_SYSTEM,
+        Constants.MESSAGE_TYPE_USER_JOIN,
+        Constants.MESSAGE_TYPE_USER_LEAVE
+    };
+
+    // lastSequence is the last message the client saw, 0 on a fresh start
+    public static byte[] encodeHello(User user, long lastSequence) {
+        String username = user.getUsername();
+        String status = user.getStatus();
+        ByteBuffer frame = allocate(FrameType.HELLO,
+                stringSize(username) + stringSize(status) + varLongSize(lastSequence));
+        putString(frame, username);
+        putString(frame, status);
+        putVarLong(frame, lastSequence);
+        return frame.array();
+    }
+
+    public static byte[] encodeWelcome() {
+        return allocate(FrameType.WELCOME, 1).put(Handshake.VERSION).array();
+    }
+
+    public static byte[] encodeError(String reason) {
+        return encodeText(FrameType.ERROR, reason);
+    }
+
+    public static byte[] encodeWarning(String warning) {
+        return encodeText(FrameType.WARNING, warning);
+    }
+
+    // retry after millis | reason
+    public static byte[] encodeThrottled(long retryAfterMillis, String reason) {
+        ByteBuffer frame = allocate(FrameType.THROTTLED, varLongSize(retryAfterMillis) + stringSize(reason));
+        putVarLong(frame, retryAfterMillis);
+        putString(frame, reason);
+        return frame.array();
+    }
+
+    // The frames that follow are what is left of the room's history
+    public static byte[] encodeTooFarBehind(String room) {
+        return encodeText(FrameType.TOO_FAR_BEHIND, room);
+    }
+
+    // room | last sequence seen in it, 0 for a first visit
+    public static byte[] encodeRoomJoin(String room, long lastSequence) {
+        ByteBuffer frame = allocate(FrameType.ROOM_JOIN, stringSize(room) + varLongSize(lastSequence));
+        putString(frame, room);
+        putVarLong(frame, lastSequence);
+        return frame.array();
+    }
+
+    // From the server only the room, confirming a join before the room's history
+    public static byte[] encodeRoomJoined(String room) {
+        return encodeText(FrameType.ROOM_JOIN, room);
+    }
+
+    // The same both ways, from the server it means the client is not in the room
+    public static byte[] encodeRoomLeave(String room) {
+        return encodeText(FrameType.ROOM_LEAVE, room);
+    }
+
+    public static byte[] encodeRoomListRequest() {
+        return allocate(FrameType.ROOM_LIST, 0).array();
+    }
+
+    // room count | name, member count per room
+    public static byte[] encodeRoomList(Map<String, Integer> rooms) {
+        int size = varLongSize(rooms.size());
+        for (Map.Entry<String, Integer> room : rooms.entrySet()) {
+            size += stringSize(room.getKey()) + varLongSize(room.getValue());
+        }
+        ByteBuffer frame = allocate(FrameType.ROOM_LIST, size);
+        putVarLong(frame, rooms.size());
+        for (Map.Entry<String, Integer> room : rooms.entrySet()) {
+            putString(frame, room.getKey());
+            putVarLong(frame, room.getValue());
+        }
+        return frame.array();
+    }
+
+    public static byte[] encodeStatus(String status) {
+        return encodeText(FrameType.STATUS, status);
+    }
+
+    // room | version | user count | username, status per user | 1 if more of the same snapshot
+    // follows. A room too large for one frame is sent in several, see presenceBatchSize().
+    public static byte[] encodePresenceSnapshot(String room, long version, Collection<User> users, boolean more) {
+        int size = stringSize(room) + varLongSize(version) + varLongSize(users.size()) + (more ? 1 : 0);
+        for (User user : users) {
+            size += stringSize(user.getUsername()) + stringSize(user.getStatus());
+        }
+        ByteBuffer frame = allocate(FrameType.PRESENCE_SNAPSHOT, size);
+        putString(frame, room);
+        putVarLong(frame, version);
+        putVarLong(frame, users.size());
+        for (User user : users) {
+            putString(frame, user.getUsername());
+            putString(frame, user.getStatus());
+        }
+        if (more) {
+            frame.put((byte) 1);
+        }
+        return frame.array();
+    }
+
+    // How many users from start on fit one presence frame of the room, as snapshot entries or
+    // as delta entries, at least one
+    public static int presenceBatchSize(String room, List<User> users, int start) {
+        // Type byte, room, the longest version and count, the snapshot's trailing flag
+        int space = Constants.MAX_FRAME_SIZE - 1 - stringSize(room) - 2 * MAX_VARLONG_SIZE - 1;
+        int end = start;
+        while (end < users.size()) {
+            User user = users.get(end);
+            int entry = 1 + stringSize(user.getUsername()) + stringSize(user.getStatus());
+            if (entry > space && end > start) {
+                break;
+            }
+            space -= entry;
+            end++;
+        }
+        return end - start;
+    }
+
+    // Only the room, from a client
+    public static byte[] encodePresenceRequest(String room) {
+        return encodeText(FrameType.PRESENCE_SNAPSHOT, room);
+    }
+
+    // room | version | change count | PresenceChange, username, status per change
+    public static byte[] encodePresenceDelta(String room, long version, byte[] changes, List<User> users) {
+        int size = stringSize(room) + varLongSize(version) + varLongSize(changes.length);
+        for (User user : users) {
+            size += 1 + stringSize(user.getUsername()) + stringSize(user.getStatus());
+        }
+        ByteBuffer frame = allocate(FrameType.PRESENCE_DELTA, size);
+        putString(frame, room);
+        putVarLong(frame, version);
+        putVarLong(frame, changes.length);
+        for (int i = 0; i < changes.length; i++) {
+            frame.put(changes[i]);
+            putString(frame, users.get(i).getUsername());
+            putString(frame, users.get(i).getStatus());
+        }
+        return frame.array();
+    }
+
+    private static byte[] encodeText(byte type, String text) {
+        ByteBuffer frame = allocate(type, stringSize(text));
+        putString(frame, text);
+        return frame.array();
+    }
+
+    // Message frames are the hot path, they go into pooled buffers
+    public static EncodedFrame encodeMessage(Message message) {
+        long sequence = message.getSequence();
+        ByteBuffer frame = allocatePooled(FrameType.MESSAGE, varLongSize(sequence) + messageBodySize(message));
+        putVarLong(frame, sequence);
+        putMessageBody(frame, message);
+        return new EncodedFrame(frame.flip(), BufferPool.SHARED);
+    }
+
+    // Numbers and frames a message body that is already encoded, without looking at its contents
+    public static EncodedFrame encodeMessage(long sequence, ByteBuffer body) {
+        ByteBuffer frame = allocatePooled(FrameType.MESSAGE, varLongSize(sequence) + body.remaining());
+        putVarLong(frame, sequence);
+        frame.put(frame.position(), body, body.position(), body.remaining());
+        frame.position(frame.position() + body.remaining());
+        return new EncodedFrame(frame.flip(), BufferPool.SHARED);
+    }
+
+    // recipient | kind | timestamp | sender | content, the same in both directions. Not numbered
+    // and not kept, only the two users involved see it.
+    public static byte[] encodeDirect(Message message) {
+        long timestamp = epochMillis(message);
+        ByteBuffer frame = allocate(FrameType.DIRECT, stringSize(message.getRecipient()) + 1
+                + varLongSize(timestamp) + stringSize(message.getSender().getUsername())
+                + stringSize(message.getContent()));
+        putString(frame, message.getRecipient());
+        frame.put(kindOf(message.getMessageType()));
+        putVarLong(frame, timestamp);
+        putString(frame, message.getSender().getUsername());
+        putString(frame, message.getContent());
+        return frame.array();
+    }
+
+    // The body is everything after the sequence number: kind | timestamp | room | sender | content,
+    // then the trace header if the message has one
+    public static int messageBodySize(Message message) {
+        Trace trace = message.getTrace();
+        return 1 + varLongSize(epochMillis(message)) + stringSize(message.getRoom())
+                + stringSize(message.getSender().getUsername()) + stringSize(message.getContent())
+                + (trace != null ? 1 + varLongSize(trace.getId()) + varLongSize(trace.getSentNanos()) : 0);
+    }
+
+    public static void putMessageBody(ByteBuffer buffer, Message message) {
+        buffer.put(kindOf(message.getMessageType()));
+        putVarLong(buffer, epochMillis(message));
+        putString(buffer, message.getRoom());
+        putString(buffer, message.getSender().getUsername());
+        putString(buffer, message.getContent());
+        Trace trace = message.getTrace();
+        if (trace != null) {
+            buffer.put(TRACE_TAG);
+            putVarLong(buffer, trace.getId());
+            putVarLong(buffer, trace.getSentNanos());
+        }
+    }
+
+    private static long epochMillis(Message message) {
+        return message.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    // The decode methods expect the buffer positioned just after the type byte. Usernames and
+    // statuses over the limits are refused here, before anything is built from them.
+    public static User decodeHello(ByteBuffer frame) throws IOException {
+        try {
+            User user = new User(getString(frame, Constants.MAX_USERNAME_BYTES, "Username"));
+            user.setStatus(getString(frame, Constants.MAX_STATUS_BYTES, "Status"));
+            return user;
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated HELLO frame");
+        }
+    }
+
+    // Room frames, presence frames and TOO_FAR_BEHIND start with the room name
+    public static String decodeRoom(ByteBuffer frame) throws IOException {
+        try {
+            return getString(frame);
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated frame, room missing");
+        }
+    }
+
+    // Names and member counts, in the order the server sent them
+    public static Map<String, Integer> decodeRoomList(ByteBuffer frame) throws IOException {
+        try {
+            int count = decodePresenceCount(frame);
+            Map<String, Integer> rooms = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                rooms.put(getString(frame), (int) getVarLong(frame));
+            }
+            return rooms;
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated room list");
+        }
+    }
+
+    // Both presence frames continue with the version after the room
+    public static long decodePresenceVersion(ByteBuffer frame) throws IOException {
+        try {
+            return getVarLong(frame);
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated presence frame");
+        }
+    }
+
+    // The users of a PRESENCE_SNAPSHOT, after its version
+    public static List<User> decodePresenceSnapshot(ByteBuffer frame) throws IOException {
+        try {
+            int count = decodePresenceCount(frame);
+            List<User> users = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                users.add(getUser(frame));
+            }
+            return users;
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated presence frame");
+        }
+    }
+
+    // Number of users, changes or rooms that follow
+    public static int decodePresenceCount(ByteBuffer frame) throws IOException {
+        try {
+            long count = getVarLong(frame);
+            // Every entry takes at least two bytes
+            if (count < 0 || count > frame.remaining() / 2) {
+                throw new StreamCorruptedException("Invalid presence count: " + count);
+            }
+            return (int) count;
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated presence frame");
+        }
+    }
+
+    // One user of a PRESENCE_DELTA, after its change byte
+    public static User decodePresenceUser(ByteBuffer frame) throws IOException {
+        try {
+            return getUser(frame);
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated presence frame");
+        }
+    }
+
+    // The last sequence a client saw, follows the user in its HELLO and the room in ROOM_JOIN
+    public static long decodeLastSequence(ByteBuffer frame) throws IOException {
+        try {
+            return getVarLong(frame);
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated frame, sequence number missing");
+        }
+    }
+
+    // True after the users of a PRESENCE_SNAPSHOT that is continued in the next one
+    public static boolean decodeSnapshotContinues(ByteBuffer frame) {
+        return frame.hasRemaining() && frame.get() == 1;
+    }
+
+    // A client's new status, no longer than the server accepts
+    public static String decodeStatus(ByteBuffer frame) throws IOException {
+        try {
+            return getString(frame, Constants.MAX_STATUS_BYTES, "Status");
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated STATUS frame");
+        }
+    }
+
+    // ERROR, WARNING and STATUS frames carry a single string
+    public static String decodeText(ByteBuffer frame) throws IOException {
+        try {
+            return getString(frame);
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated text frame");
+        }
+    }
+
+    // THROTTLED starts with the delay, the reason follows as text
+    public static long decodeRetryAfter(ByteBuffer frame) throws IOException {
+        try {
+            return getVarLong(frame);
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated THROTTLED frame");
+        }
+    }
+
+    public static Message decodeMessage(ByteBuffer frame) throws IOException {
+        return new MessageView().wrap(frame).toMessage();
+    }
+
+    public static Message decodeDirect(ByteBuffer frame) throws IOException {
+        return decodeDirect(frame, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    // What the server accepts from a client: a recipient that can be a username, and content
+    // it can still send on
+    public static Message decodeDirect(ByteBuffer frame, int maxNameBytes, int maxContentBytes) throws IOException {
+        try {
+            String recipient = getString(frame, maxNameBytes, "Recipient");
+            String messageType = messageType(frame.get());
+            LocalDateTime timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(getVarLong(frame)),
+                    ZoneId.systemDefault());
+            User sender = new User(getString(frame));
+            Message message = new Message(sender, getString(frame, maxContentBytes, "Message"), messageType,
+                    timestamp);
+            message.setRoom(null);
+            message.setRecipient(recipient);
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated DIRECT frame");
+        }
+    }
+
+    // Returns the frame without its length prefix, positioned at the type byte
+    public static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        return readFrame(in, null);
+    }
+
+    // Reads into the given heap buffer when it is large enough, so a connection can reuse one
+    // buffer for every frame. Larger frames get a buffer of their own that is dropped after
+    // use, the reused one never grows. The frame is only valid until the next call.
+    public static ByteBuffer readFrame(DataInputStream in, ByteBuffer reuse) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+
+        ByteBuffer frame = reuse != null && reuse.capacity() >= length ? reuse : ByteBuffer.allocate(length);
+        in.readFully(frame.array(), frame.arrayOffset(), length);
+        frame.clear().limit(length);
+        return frame;
+    }
+
+    public static void checkLength(int length) throws IOException {
+        if (length <= 0 || length > Constants.MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+    }
+
+    private static ByteBuffer allocate(byte type, int bodySize) {
+        return ByteBuffer.allocate(HEADER_SIZE + checkedLength(bodySize)).putInt(1 + bodySize).put(type);
+    }
+
+    private static ByteBuffer allocatePooled(byte type, int bodySize) {
+        return BufferPool.SHARED.acquire(HEADER_SIZE + checkedLength(bodySize)).putInt(1 + bodySize).put(type);
+    }
+
+    private static int checkedLength(int bodySize) {
+        int length = 1 + bodySize;
+        if (length > Constants.MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Frame too large: " + length + " bytes");
+        }
+        return length;
+    }
+
+    private static byte kindOf(String messageType) {
+        for (int i = 0; i < MESSAGE_KINDS.length; i++) {
+            if (MESSAGE_KINDS[i].equals(messageType)) {
+                return (byte) i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown message type: " + messageType);
+    }
+
+    static String messageType(int kind) throws IOException {
+        if (kind < 0 || kind >= MESSAGE_KINDS.length) {
+            throw new StreamCorruptedException("Unknown message kind: " + kind);
+        }
+        return MESSAGE_KINDS[kind];
+    }
+
+    private static int stringSize(String text) {
+        int length = utf8Length(text);
+        return varLongSize(length) + length;
+    }
+
+    // Strings are encoded straight into the frame, no intermediate byte[]
+    private static void putString(ByteBuffer buffer, String text) {
+        putVarLong(buffer, utf8Length(text));
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer.put((byte) (0xF0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, replaced like String.getBytes does
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    private static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static User getUser(ByteBuffer buffer) throws IOException {
+        User user = new User(getString(buffer));
+        user.setStatus(getString(buffer));
+        return user;
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+        int size = getStringLength(buffer);
+        String text = utf8String(buffer, buffer.position(), size);
+        buffer.position(buffer.position() + size);
+        return text;
+    }
+
+    // Strings with a limit are sent on, and must not grow when encoded again. A malformed byte
+    // would come back as a 3-byte replacement character, so it is refused instead.
+    private static String getString(ByteBuffer buffer, int maxBytes, String what) throws IOException {
+        int size = getStringLength(buffer);
+        if (size > maxBytes) {
+            throw new LimitExceededException(what + " too long, at most " + maxBytes + " bytes");
+        }
+        String text;
+        try {
+            text = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(buffer.slice(buffer.position(), size))
+                .toString();
+        } catch (CharacterCodingException e) {
+            throw new LimitExceededException(what + " is not valid UTF-8");
+        }
+        buffer.position(buffer.position() + size);
+        return text;
+    }
+
+    // Reads a string's length prefix and checks that the bytes are all there
+    static int getStringLength(ByteBuffer buffer) throws IOException {
+        long length = getVarLong(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new StreamCorruptedException("Invalid string length: " + length);
+        }
+        return (int) length;
+    }
+
+    static String utf8String(ByteBuffer buffer, int offset, int size) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, size, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[size];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Unsigned LEB128, 7 bits per byte
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Varint too long");
+    }
+}
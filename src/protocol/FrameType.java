@@ -0,0 +1,30 @@
+package protocol;
+
+// First byte of every frame body
+public class FrameType {
+    public static final byte HELLO = 1;
+    public static final byte WELCOME = 2;
+    public static final byte ERROR = 3;
+    public static final byte MESSAGE = 4;
+    public static final byte WARNING = 5;
+    // The messages a reconnecting client missed in a room are no longer all in the server's history
+    public static final byte TOO_FAR_BEHIND = 6;
+    // Everyone in a room plus the presence version. One with only the room from a client asks
+    // for a new one.
+    public static final byte PRESENCE_SNAPSHOT = 7;
+    // One user joined, left or changed status, numbered by the same version counter
+    public static final byte PRESENCE_DELTA = 8;
+    // Client to server: a new status for its user
+    public static final byte STATUS = 9;
+    // Client to server: subscribe to a room, or stop. Server to client: the join went through,
+    // or the client is not in the room, e.g. because its join was refused.
+    public static final byte ROOM_JOIN = 10;
+    public static final byte ROOM_LEAVE = 11;
+    // Empty from a client, the server answers with the rooms and their member counts
+    public static final byte ROOM_LIST = 12;
+    // A private message to one user, echoed back to its sender
+    public static final byte DIRECT = 13;
+    // Server to client: a message was refused for sending too fast or while the server is
+    // overloaded. Carries when to try again and why.
+    public static final byte THROTTLED = 14;
+}
@@ -0,0 +1,73 @@
+package protocol;
+
+import model.Message;
+import model.User;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+// Every binary client opens with "CHT" + protocol version before its HELLO frame.
+// Four bytes, because old clients send only their 4-byte stream header and then wait for ours.
+public class Handshake {
+    public static final int MAGIC = 0x434854;
+    public static final byte VERSION = 3;
+    // Version 2 numbered MESSAGE frames and resumed from the last one in HELLO, version 3 adds rooms
+    public static final byte MIN_VERSION = 3;
+    public static final int PREAMBLE_SIZE = 4;
+
+    // ObjectOutputStream.STREAM_MAGIC, sent first by clients that still use Java serialization
+    private static final short JAVA_SERIALIZATION_MAGIC = (short) 0xACED;
+    // Ends the ERROR a HELLO gets when the name is in use
+    private static final String USERNAME_TAKEN = " is already taken";
+
+    public enum Result {
+        OK, LEGACY_CLIENT, UNKNOWN_PROTOCOL, UNSUPPORTED_VERSION
+    }
+
+    public static byte[] preamble() {
+        return ByteBuffer.allocate(PREAMBLE_SIZE).putInt(MAGIC << 8 | VERSION).array();
+    }
+
+    // Consumes PREAMBLE_SIZE bytes from the buffer
+    public static Result check(ByteBuffer buffer) {
+        int preamble = buffer.getInt();
+        byte version = (byte) preamble;
+
+        if ((short) (preamble >>> 16) == JAVA_SERIALIZATION_MAGIC) {
+            return Result.LEGACY_CLIENT;
+        }
+        if (preamble >>> 8 != MAGIC) {
+            return Result.UNKNOWN_PROTOCOL;
+        }
+        if (version < MIN_VERSION || version > VERSION) {
+            return Result.UNSUPPORTED_VERSION;
+        }
+        return Result.OK;
+    }
+
+    public static String usernameTaken(String username) {
+        return "The username " + username + USERNAME_TAKEN;
+    }
+
+    // A reconnecting client can get this while the server still holds its old connection, which
+    // is worth waiting out, unlike any other refusal
+    public static boolean isUsernameTaken(String reason) {
+        return reason.endsWith(USERNAME_TAKEN);
+    }
+
+    // Old clients read a Java object stream, so tell them in a form they can display
+    public static byte[] legacyNotice() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(new Message(new User("System"),
+                        "This server requires a newer ChatApp client. Please update.", "SYSTEM"));
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
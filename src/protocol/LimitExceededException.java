@@ -0,0 +1,13 @@
+package protocol;
+
+import java.io.IOException;
+
+// A frame that is well formed but carries more than the server accepts. Unlike a corrupt
+// frame it does not end the connection, the client is told why and the frame is dropped.
+public class LimitExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public LimitExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,145 @@
+package protocol;
+
+import model.Message;
+import model.Trace;
+import model.User;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+// Reads a MESSAGE body in place. wrap() validates it and remembers where the fields are,
+// strings are only built when asked for. One view is reused for every frame on a connection,
+// so relaying a message never has to decode it.
+public class MessageView {
+    private ByteBuffer body;
+    private int start;
+    private int end;
+    private long sequence;
+    private String messageType;
+    private long timestamp;
+    private int roomOffset;
+    private int roomLength;
+    private int senderOffset;
+    private int senderLength;
+    private int contentOffset;
+    private int contentLength;
+    // 0 without a trace header
+    private long traceId;
+    private long traceSentNanos;
+    private String room;
+    private String sender;
+    private String content;
+
+    // Expects the buffer positioned just after the type byte and leaves its position alone.
+    // The view is valid until the buffer is reused.
+    public MessageView wrap(ByteBuffer frame) throws IOException {
+        int position = frame.position();
+        try {
+            body = frame;
+            sequence = FrameCodec.getVarLong(frame);
+            start = frame.position();
+            messageType = FrameCodec.messageType(frame.get());
+            timestamp = FrameCodec.getVarLong(frame);
+            roomLength = FrameCodec.getStringLength(frame);
+            roomOffset = frame.position();
+            frame.position(roomOffset + roomLength);
+            senderLength = FrameCodec.getStringLength(frame);
+            senderOffset = frame.position();
+            frame.position(senderOffset + senderLength);
+            contentLength = FrameCodec.getStringLength(frame);
+            contentOffset = frame.position();
+            end = contentOffset + contentLength;
+            traceId = 0;
+            if (end < frame.limit() && frame.get(end) == FrameCodec.TRACE_TAG) {
+                frame.position(end + 1);
+                traceId = FrameCodec.getVarLong(frame);
+                traceSentNanos = FrameCodec.getVarLong(frame);
+                end = frame.position();
+            }
+            room = null;
+            sender = null;
+            content = null;
+            return this;
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated MESSAGE frame");
+        } finally {
+            frame.position(position);
+        }
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public long getTimestampMillis() {
+        return timestamp;
+    }
+
+    public boolean isTraced() {
+        return traceId != 0;
+    }
+
+    public String getRoom() {
+        if (room == null) {
+            room = FrameCodec.utf8String(body, roomOffset, roomLength);
+        }
+        return room;
+    }
+
+    // Compares the encoded room name without building a string
+    public boolean isRoom(byte[] utf8Name) {
+        if (roomLength != utf8Name.length) {
+            return false;
+        }
+        for (int i = 0; i < roomLength; i++) {
+            if (body.get(roomOffset + i) != utf8Name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getSender() {
+        if (sender == null) {
+            sender = FrameCodec.utf8String(body, senderOffset, senderLength);
+        }
+        return sender;
+    }
+
+    public String getContent() {
+        if (content == null) {
+            content = FrameCodec.utf8String(body, contentOffset, contentLength);
+        }
+        return content;
+    }
+
+    public Message toMessage() {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault());
+        Message message = new Message(new User(getSender()), getContent(), messageType, time);
+        message.setSequence(sequence);
+        message.setRoom(getRoom());
+        if (traceId != 0) {
+            message.setTrace(new Trace(traceId, traceSentNanos));
+        }
+        return message;
+    }
+
+    // Encoded size of the body without the sequence number, the trace header included. Other
+    // trailing bytes are not part of it.
+    public int bodyLength() {
+        return end - start;
+    }
+
+    public void copyBody(ByteBuffer target) {
+        target.put(target.position(), body, start, bodyLength());
+        target.position(target.position() + bodyLength());
+    }
+}
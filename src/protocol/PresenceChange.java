@@ -0,0 +1,8 @@
+package protocol;
+
+// What a PRESENCE_DELTA frame reports about its user
+public class PresenceChange {
+    public static final byte JOINED = 0;
+    public static final byte LEFT = 1;
+    public static final byte STATUS_CHANGED = 2;
+}
@@ -0,0 +1,144 @@
+package server;
+
+import protocol.EncodedFrame;
+import protocol.FrameCodec;
+import java.util.function.BooleanSupplier;
+
+// One slice of the connection set with its own fan-out thread. A frame for a room is published
+// to every shard with members in it, which deliver it to those members in parallel. Each shard
+// delivers frames in publish order, so per-sender order holds for every receiver. Room joins
+// go through the same ring, so their history backlog lines up with live traffic.
+public final class BroadcastShard implements Runnable {
+    final int index;
+    private final RingBuffer<FrameEvent> ring;
+    private final RingBuffer.EventHandler<FrameEvent> deliveryHandler;
+    private final HistoryRing history;
+    private final ServerMetrics metrics;
+    // Created on start, so the shard is fully built before it runs
+    private Thread thread;
+    private volatile boolean running;
+
+    public BroadcastShard(int index, int ringSize, WaitStrategy waitStrategy, HistoryRing history,
+            ServerMetrics metrics) {
+        this.index = index;
+        this.ring = new RingBuffer<>(ringSize, FrameEvent::new, waitStrategy);
+        this.deliveryHandler = this::deliver;
+        this.history = history;
+        this.metrics = metrics;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "broadcast-shard-" + index);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        ring.getWaitStrategy().signal();
+    }
+
+    // A frame for the room's members on this shard. Takes over the caller's reference to the
+    // frame; sequence is 0 for unnumbered frames.
+    public void publish(Room room, long sequence, EncodedFrame frame) {
+        long slot = ring.next();
+        FrameEvent event = ring.get(slot);
+        event.frame = frame;
+        event.room = room;
+        event.sequence = sequence;
+        event.joining = null;
+        event.recipient = null;
+        event.publishedAtNanos = System.nanoTime();
+        ring.publish(slot);
+    }
+
+    // A frame for one client, in order with everything published to the whole shard. Takes
+    // over the caller's reference.
+    public void send(ClientConnection client, EncodedFrame frame) {
+        long slot = ring.next();
+        FrameEvent event = ring.get(slot);
+        event.frame = frame;
+        event.room = null;
+        event.sequence = 0;
+        event.joining = null;
+        event.recipient = client;
+        ring.publish(slot);
+    }
+
+    // The subscriber gets the room's history backlog after lastSequence, then everything
+    // published to the room after this call. 0 means a first visit, which gets the whole history.
+    public void join(Subscription subscription, long lastSequence) {
+        long slot = ring.next();
+        FrameEvent event = ring.get(slot);
+        event.frame = null;
+        event.room = null;
+        event.sequence = lastSequence;
+        event.joining = subscription;
+        event.recipient = null;
+        ring.publish(slot);
+    }
+
+    @Override
+    public void run() {
+        WaitStrategy waitStrategy = ring.getWaitStrategy();
+        BooleanSupplier hasWork = ring::hasPublished;
+        int idleRounds = 0;
+        while (running) {
+            if (ring.drain(deliveryHandler) > 0) {
+                idleRounds = 0;
+            } else {
+                waitStrategy.idle(idleRounds++, hasWork);
+            }
+        }
+    }
+
+    private void deliver(FrameEvent event, long sequence, boolean endOfBatch) {
+        if (event.joining != null) {
+            Subscription subscription = event.joining;
+            event.joining = null;
+            sendBacklog(subscription, event.sequence);
+            return;
+        }
+
+        EncodedFrame frame = event.frame;
+        if (event.recipient != null) {
+            event.recipient.sendFrame(frame);
+            event.recipient = null;
+        } else {
+            event.recipients = 0;
+            event.room.subscribers(index).forEach(BroadcastShard::deliverTo, event);
+            event.room = null;
+            long fanOutNanos = System.nanoTime() - event.publishedAtNanos;
+            metrics.fanOut.record(fanOutNanos);
+            FlightEvents.broadcastFinished(event.sequence, index, event.recipients, fanOutNanos);
+        }
+        event.frame = null;
+        frame.release();
+    }
+
+    // Skips members that have not joined yet, and messages already in their backlog
+    private static void deliverTo(Subscription subscription, FrameEvent event) {
+        if (subscription.joined && (event.sequence == 0 || event.sequence > subscription.backlogSequence)) {
+            subscription.client.sendFrame(event.frame);
+            event.recipients++;
+        }
+    }
+
+    // History frames up to the backlog's last sequence may still be on their way through this
+    // ring, those are skipped for this client
+    private void sendBacklog(Subscription subscription, long lastSequence) {
+        ClientConnection client = subscription.client;
+        HistoryRing.Backlog backlog = history.backlogAfter(lastSequence, subscription.room.name);
+        if (!backlog.complete) {
+            // Tell the client its gap cannot be filled before sending what there is
+            client.sendFrame(new EncodedFrame(FrameCodec.encodeTooFarBehind(subscription.room.name)));
+        }
+        subscription.backlogSequence = backlog.lastSequence;
+        if (backlog.frames != null) {
+            client.sendFrame(backlog.frames);
+            backlog.frames.release();
+        }
+        subscription.joined = true;
+    }
+}
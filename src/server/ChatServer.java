@@ -2,28 +2,93 @@ package server;
 
 import model.Message;
 import model.User;
+import protocol.EncodedFrame;
+import protocol.FrameCodec;
+import protocol.MessageView;
 import utils.Constants;
 import utils.NetworkUtils;
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
 
 public class ChatServer {
+    // Broadcaster events per pass for each unit of lane weight
+    private static final int EVENTS_PER_WEIGHT = 16;
+
     private ServerSocket serverSocket;
-    private final CopyOnWriteArrayList<ClientHandler> clients;
-    private final CopyOnWriteArrayList<User> connectedUsers;
-    private final BlockingQueue<Message> messageQueue;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] eventLoops;
+    private final ConnectionRegistry clients;
+    // The broadcaster's lanes: room membership and presence, chat messages, and oversized
+    // messages. All three wake the broadcaster through the same wait strategy.
+    private final RingBuffer<MessageEvent> controlRing;
+    private final RingBuffer<MessageEvent> messageRing;
+    private final RingBuffer<MessageEvent> bulkRing;
+    private final RingBuffer.EventHandler<MessageEvent> broadcastHandler;
+    // Only used by the broadcaster thread
+    private final MessageView broadcastView;
+    // Rooms with at least one member or presence changes still to send. Changed by the
+    // broadcaster only, read by connections listing and joining the rooms.
+    private final ConcurrentHashMap<String, Room> rooms;
+    // Rooms with a presence window running, oldest window first. Owned by the broadcaster.
+    private final ArrayDeque<Room> presenceWindows;
+    private final BroadcastShard[] shards;
+    private MessageJournal journal;
+    private final HistoryRing history;
+    // Sequence number of the last broadcast message, owned by the broadcaster thread
+    private long lastSequence;
+    private int nextShard;
+    private int nextConnectionId;
     private final ExecutorService clientExecutor;
+    private final ScheduledExecutorService monitorExecutor;
     private final AtomicBoolean isRunning;
+    private final RateLimits rateLimits;
+    private final ServerMetrics metrics;
     
     public ChatServer() {
-        clients = new CopyOnWriteArrayList<>();
-        connectedUsers = new CopyOnWriteArrayList<>();
-        messageQueue = new LinkedBlockingQueue<>();
-        clientExecutor = Executors.newCachedThreadPool();
+        clients = new ConnectionRegistry(Constants.REGISTRY_STRIPES);
+        rateLimits = new RateLimits();
+        WaitStrategy broadcastWait = new WaitStrategy(
+            WaitStrategy.Type.valueOf(Constants.MESSAGE_RING_WAIT_STRATEGY.toUpperCase()));
+        controlRing = new RingBuffer<>(Constants.MESSAGE_RING_SIZE, MessageEvent::new, broadcastWait);
+        messageRing = new RingBuffer<>(Constants.MESSAGE_RING_SIZE, MessageEvent::new, broadcastWait);
+        bulkRing = new RingBuffer<>(Constants.MESSAGE_RING_SIZE, MessageEvent::new, broadcastWait);
+        metrics = new ServerMetrics(controlRing, messageRing, bulkRing, clients);
+        broadcastHandler = this::broadcastSafely;
+        broadcastView = new MessageView();
+        rooms = new ConcurrentHashMap<>();
+        presenceWindows = new ArrayDeque<>();
+        history = new HistoryRing(Constants.HISTORY_MAX_MESSAGES, Constants.HISTORY_MAX_BYTES);
+        shards = new BroadcastShard[Math.max(1, Constants.BROADCAST_SHARDS)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new BroadcastShard(i, Constants.MESSAGE_RING_SIZE,
+                new WaitStrategy(WaitStrategy.Type.valueOf(Constants.MESSAGE_RING_WAIT_STRATEGY.toUpperCase())),
+                history, metrics);
+        }
+        journal = Constants.JOURNAL_ENABLED ? MessageJournal.fromConstants() : null;
+        clientExecutor = "virtual".equalsIgnoreCase(Constants.SERVER_MODE)
+            ? Executors.newVirtualThreadPerTaskExecutor()
+            : Executors.newCachedThreadPool();
         isRunning = new AtomicBoolean(false);
+        monitorExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "slow-consumer-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
     
     public void start() {
@@ -31,39 +96,50 @@ public class ChatServer {
             // Display network information
             NetworkUtils.displayNetworkInfo();
             
+            boolean nio = "nio".equalsIgnoreCase(Constants.SERVER_MODE);
+            
             // Create server socket that listens on all interfaces
-            serverSocket = new ServerSocket(Constants.SERVER_PORT, 50, 
-                java.net.InetAddress.getByName(Constants.SERVER_HOST));
+            if (nio) {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(
+                    InetAddress.getByName(Constants.SERVER_HOST), Constants.SERVER_PORT), 50);
+                startEventLoops();
+            } else {
+                serverSocket = new ServerSocket(Constants.SERVER_PORT, 50, 
+                    InetAddress.getByName(Constants.SERVER_HOST));
+            }
             
             isRunning.set(true);
             System.out.println("🚀 Chat server started successfully!");
             System.out.println("📍 Listening on port: " + Constants.SERVER_PORT);
+            System.out.println("⚙️  Server mode: " + (nio ? "nio (" + eventLoops.length + " event loops)" : Constants.SERVER_MODE)
+                + ", " + shards.length + " broadcast shards");
             System.out.println("🌐 Accessible from other devices on your network");
             System.out.println("⏹️  Press Ctrl+C to stop the server");
             
-            // Start message broadcaster
-            Thread broadcasterThread = new Thread(this::broadcastMessages);
+            // Numbering continues where the journal left off
+            openJournal();
+            
+            // Start fan-out shards and the message broadcaster
+            for (BroadcastShard shard : shards) {
+                shard.start();
+            }
+            Thread broadcasterThread = new Thread(this::broadcastMessages, "message-broadcaster");
             broadcasterThread.setDaemon(true);
             broadcasterThread.start();
             
+            // Watch for clients that cannot keep up
+            monitorExecutor.scheduleWithFixedDelay(new SlowConsumerMonitor(clients),
+                Constants.SLOW_CONSUMER_CHECK_MILLIS, Constants.SLOW_CONSUMER_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            
+            // Metrics over JMX, and in a file if one is configured
+            startMetrics();
+            
             // Accept client connections
-            while (isRunning.get()) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    String clientAddress = clientSocket.getInetAddress().getHostAddress();
-                    System.out.println("📱 New connection from: " + clientAddress);
-                    
-                    ClientHandler clientHandler = new ClientHandler(clientSocket, this, messageQueue);
-                    clients.add(clientHandler);
-                    clientExecutor.execute(clientHandler);
-                    
-                    System.out.println("👥 Total connected clients: " + clients.size());
-                    
-                } catch (IOException e) {
-                    if (isRunning.get()) {
-                        System.out.println("❌ Error accepting client connection: " + e.getMessage());
-                    }
-                }
+            if (nio) {
+                acceptNioClients();
+            } else {
+                acceptClients();
             }
             
         } catch (IOException e) {
@@ -75,79 +151,526 @@ public class ChatServer {
         }
     }
     
-    private void broadcastMessages() {
+    private void openJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            // The newest part of the journal becomes the history backlog again
+            MessageView view = new MessageView();
+            lastSequence = journal.open((frame, sequence) -> {
+                try {
+                    String room = view.wrap(frame.duplicate().position(FrameCodec.HEADER_SIZE + 1)).getRoom();
+                    history.append(sequence, room, frame);
+                } catch (IOException e) {
+                    System.out.println("⚠️  Skipping unreadable journal record #" + sequence);
+                }
+            });
+            journal.start();
+            System.out.println("📜 Message journal in " + Constants.JOURNAL_DIR + ", last message #" + lastSequence);
+        } catch (IOException e) {
+            System.out.println("⚠️  Message journal unavailable, history will not be saved: " + e.getMessage());
+            journal = null;
+        }
+    }
+    
+    private void startMetrics() {
+        metrics.register();
+        metrics.register(rateLimits, "chat:type=RateLimits");
+        Path metricsFile = Constants.METRICS_FILE.isEmpty() ? null : Paths.get(Constants.METRICS_FILE);
+        monitorExecutor.scheduleAtFixedRate(() -> {
+            metrics.sample();
+            if (metricsFile != null) {
+                metrics.writeTo(metricsFile);
+            }
+        }, Constants.METRICS_INTERVAL_MILLIS, Constants.METRICS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        System.out.println("📊 Metrics over JMX as chat:type=ServerMetrics"
+            + (metricsFile != null ? " and in " + metricsFile : ""));
+    }
+    
+    private void acceptClients() {
         while (isRunning.get()) {
             try {
-                Message message = messageQueue.take();
-                System.out.println("📨 Broadcasting: " + message.getDisplayText());
+                Socket clientSocket = serverSocket.accept();
+                String clientAddress = clientSocket.getInetAddress().getHostAddress();
+                System.out.println("📱 New connection from: " + clientAddress);
                 
-                // Send message to all clients
-                for (ClientHandler client : clients) {
-                    client.sendMessage(message);
+                ClientHandler clientHandler = new ClientHandler(clientSocket, this, clientExecutor);
+                addClient(clientHandler, clientAddress);
+                clientExecutor.execute(clientHandler);
+                
+                System.out.println("👥 Total connected clients: " + clients.size());
+                
+            } catch (IOException e) {
+                if (isRunning.get()) {
+                    System.out.println("❌ Error accepting client connection: " + e.getMessage());
                 }
+            }
+        }
+    }
+    
+    private void addClient(ClientConnection client, String address) {
+        // Accept loop is single-threaded, so plain round-robin and counting are enough
+        client.id = ++nextConnectionId;
+        client.shard = shards[nextShard];
+        nextShard = (nextShard + 1) % shards.length;
+        clients.add(client);
+        metrics.connects.increment();
+        FlightEvents.clientConnected(client.id, address);
+    }
+    
+    private void startEventLoops() throws IOException {
+        eventLoops = new EventLoop[Math.max(1, Constants.EVENT_LOOP_THREADS)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop("event-loop-" + i);
+            eventLoops[i].start();
+        }
+    }
+    
+    private void acceptNioClients() {
+        int nextLoop = 0;
+        while (isRunning.get()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                String clientAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+                System.out.println("📱 New connection from: " + clientAddress);
                 
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
+                // Spread connections round-robin over the event loops
+                EventLoop eventLoop = eventLoops[nextLoop];
+                nextLoop = (nextLoop + 1) % eventLoops.length;
+                
+                // Shard first, the event loop may read the handshake as soon as it is registered
+                NioClientHandler clientHandler = new NioClientHandler(channel, eventLoop, this);
+                addClient(clientHandler, clientAddress);
+                eventLoop.register(clientHandler);
+                
+                System.out.println("👥 Total connected clients: " + clients.size());
+                
+            } catch (IOException e) {
+                if (isRunning.get()) {
+                    System.out.println("❌ Error accepting client connection: " + e.getMessage());
+                }
             }
         }
     }
     
-    public void addUser(User user) {
-        connectedUsers.add(user);
-        System.out.println("➕ User joined: " + user.getUsername());
-        System.out.println("👥 Total users: " + connectedUsers.size());
-        
-        // Broadcast updated user list to all clients
-        broadcastUserList();
+    private void broadcastMessages() {
+        WaitStrategy waitStrategy = messageRing.getWaitStrategy();
+        BooleanSupplier hasWork = () -> controlRing.hasPublished() || messageRing.hasPublished()
+            || bulkRing.hasPublished();
+        int idleRounds = 0;
+        while (isRunning.get()) {
+            // Each lane gets a batch in proportion to its weight per pass, so a backed-up lane
+            // cannot hold the others up for longer than one pass
+            int handled = controlRing.drain(broadcastHandler, Lane.CONTROL.weight * EVENTS_PER_WEIGHT)
+                + messageRing.drain(broadcastHandler, Lane.CHAT.weight * EVENTS_PER_WEIGHT)
+                + bulkRing.drain(broadcastHandler, Lane.BULK.weight * EVENTS_PER_WEIGHT);
+            if (handled > 0) {
+                idleRounds = 0;
+            } else {
+                waitStrategy.idle(idleRounds++, hasWork);
+            }
+            flushPresence();
+        }
     }
     
-    public void removeUser(User user) {
-        connectedUsers.remove(user);
-        System.out.println("➖ User left: " + user.getUsername());
-        System.out.println("👥 Total users: " + connectedUsers.size());
-        
-        // Broadcast updated user list to all clients
-        broadcastUserList();
+    // A single event that fails is dropped and the broadcaster moves on, everything behind it
+    // in the rings still goes out
+    private void broadcastSafely(MessageEvent event, long sequence, boolean endOfBatch) {
+        try {
+            broadcast(event, sequence, endOfBatch);
+        } catch (RuntimeException e) {
+            System.out.println("❌ Dropped " + event.kind + " event that could not be handled: " + e);
+            if (event.kind == MessageEvent.Kind.MESSAGE && event.client != null) {
+                event.client.bulkInFlight.decrementAndGet();
+            }
+            event.client = null;
+            event.status = null;
+            event.room = null;
+            event.enqueuedAtNanos = 0;
+            event.trim();
+        }
+    }
+
+    private void broadcast(MessageEvent event, long sequence, boolean endOfBatch) {
+        if (event.kind != MessageEvent.Kind.MESSAGE) {
+            updateMembership(event);
+            return;
+        }
+
+        // A join can still be on its way through the control lane when the sender's first
+        // message comes through the chat lane. Such a message is only kept in the history and
+        // reaches the sender with the room's backlog.
+        Room room = rooms.get(event.room);
+        String roomName = event.room;
+        event.room = null;
+        // Copy once into a pooled frame, every shard, the journal and the history get the same bytes
+        long dequeuedAtNanos = event.enqueuedAtNanos != 0 ? System.nanoTime() : 0;
+        long messageSequence = ++lastSequence;
+        FlightEvents.broadcastStarted(messageSequence, event.ingressId, roomName, room != null ? room.size() : 0,
+            event.body.remaining());
+        EncodedFrame frame = FrameCodec.encodeMessage(messageSequence, event.body);
+        if (dequeuedAtNanos != 0) {
+            // The writers time the last stage from here
+            metrics.traceDequeue.record(dequeuedAtNanos - event.enqueuedAtNanos);
+            frame.setTracedAtNanos(dequeuedAtNanos);
+            event.enqueuedAtNanos = 0;
+        }
+        distribute(room, roomName, messageSequence, frame);
+        if (event.client != null) {
+            event.client.bulkInFlight.decrementAndGet();
+            event.client = null;
+        }
+        event.trim();
+    }
+
+    // Messages the server writes itself are numbered like everyone else's
+    private void broadcastServerMessage(Room room, Message message) {
+        message.setRoom(room.name);
+        message.setSequence(++lastSequence);
+        distribute(room, room.name, message.getSequence(), FrameCodec.encodeMessage(message));
+    }
+
+    // Takes over the caller's reference to the frame. Without a room the frame only goes to the
+    // journal and the history.
+    private void distribute(Room room, String roomName, long messageSequence, EncodedFrame frame) {
+        if (Constants.LOG_BROADCASTS) {
+            try {
+                ByteBuffer message = frame.asBuffer().position(FrameCodec.HEADER_SIZE + 1);
+                System.out.println("📨 Broadcasting: " + broadcastView.wrap(message).toMessage().getDisplayText());
+            } catch (IOException e) {
+                System.out.println("📨 Broadcasting: unreadable message");
+            }
+        }
+        if (journal != null) {
+            journal.append(messageSequence, frame.retain());
+        }
+        // Before the fan-out, so a client joining meanwhile finds it in its backlog
+        history.append(messageSequence, roomName, frame);
+        if (room != null) {
+            fanOut(room, messageSequence, frame);
+        } else {
+            frame.release();
+        }
     }
     
-    private void broadcastUserList() {
-        // Create a system message with user list update
-        StringBuilder userListBuilder = new StringBuilder();
-        userListBuilder.append("USER_LIST_UPDATE:");
-        for (User user : connectedUsers) {
-            userListBuilder.append(user.getUsername()).append(",");
+    // Hands one reference to every shard with members in the room and gives up the caller's
+    private void fanOut(Room room, long sequence, EncodedFrame frame) {
+        for (BroadcastShard shard : shards) {
+            if (room.hasSubscribers(shard.index)) {
+                shard.publish(room, sequence, frame.retain());
+            }
         }
-        
-        // Remove trailing comma
-        if (userListBuilder.length() > 0) {
-            userListBuilder.setLength(userListBuilder.length() - 1);
+        frame.release();
+    }
+    
+    // Subscriptions and presence are changed by the broadcaster, so a join lines up with the
+    // messages around it and presence versions go out in order. Presence is sent when the
+    // room's batching window ends.
+    private void updateMembership(MessageEvent event) {
+        ClientConnection client = event.client;
+        String status = event.status;
+        String name = event.room;
+        event.client = null;
+        event.status = null;
+        event.room = null;
+
+        switch (event.kind) {
+            case ROOM_JOINED:
+                if (client.isClosed() || client.subscriptions.containsKey(name)) {
+                    // Already gone, its leave got here first
+                    return;
+                }
+                Room room = rooms.get(name);
+                if (room == null) {
+                    if (rooms.size() >= Constants.MAX_ROOMS) {
+                        client.refuseRoom(name);
+                        return;
+                    }
+                    room = new Room(name, shards.length);
+                    rooms.put(name, room);
+                }
+                Subscription subscription = new Subscription(client, room);
+                client.subscriptions.put(name, subscription);
+                // Listed before the backlog is taken, frames in between are skipped by sequence
+                room.add(subscription);
+                // Through the shard, so the client hears of the join before the backlog arrives
+                client.shard.send(client, new EncodedFrame(FrameCodec.encodeRoomJoined(name)));
+                client.shard.join(subscription, event.lastSequence);
+                room.presence.join(client);
+                startPresenceWindow(room);
+                System.out.println("➕ " + client.getUser().getUsername() + " joined #" + name
+                    + " (" + room.size() + " members)");
+                break;
+            case ROOM_LEFT:
+                leave(client, client.subscriptions.remove(name));
+                break;
+            case USER_LEFT:
+                for (Subscription left : client.subscriptions.values()) {
+                    leave(client, left);
+                }
+                client.subscriptions.clear();
+                break;
+            case STATUS_CHANGED:
+                // Rooms joined later show the new status too
+                client.getUser().setStatus(status);
+                for (Subscription member : client.subscriptions.values()) {
+                    member.room.presence.changeStatus(client, status);
+                    startPresenceWindow(member.room);
+                }
+                break;
+            case PRESENCE_REQUESTED:
+                Subscription member = client.subscriptions.get(name);
+                if (member != null) {
+                    member.room.presence.requestSnapshot(client);
+                    startPresenceWindow(member.room);
+                }
+                break;
+            default:
+                break;
         }
-        
-        Message userListMessage = new Message(new User("System"), userListBuilder.toString(), "SYSTEM");
-        
-        // Send to all clients
-        for (ClientHandler client : clients) {
-            client.sendMessage(userListMessage);
+    }
+
+    private void leave(ClientConnection client, Subscription subscription) {
+        if (subscription == null) {
+            return;
+        }
+        Room room = subscription.room;
+        room.remove(subscription);
+        if (room.presence.leave(client)) {
+            startPresenceWindow(room);
+            System.out.println("➖ " + client.getUser().getUsername() + " left #" + room.name
+                + " (" + room.size() + " members)");
+        }
+    }
+
+    private void startPresenceWindow(Room room) {
+        if (!room.presenceQueued && room.presence.isPending()) {
+            room.presenceQueued = true;
+            presenceWindows.add(room);
+        }
+    }
+
+    // Windows end in the order they started, so only the oldest ones need checking
+    private void flushPresence() {
+        Room room;
+        while ((room = presenceWindows.peek()) != null) {
+            if (room.presence.isPending() && !room.presence.isDue()) {
+                return;
+            }
+            presenceWindows.poll();
+            room.presenceQueued = false;
+            if (room.presence.isPending()) {
+                try {
+                    flushPresence(room);
+                } catch (RuntimeException e) {
+                    // Like a failed ring event, the others still go out
+                    System.out.println("❌ Presence update for #" + room.name + " failed: " + e);
+                }
+            }
+            if (room.size() == 0) {
+                // Its history stays, a room joined again later starts with it
+                rooms.remove(room.name, room);
+            }
+        }
+    }
+
+    private void flushPresence(Room room) {
+        Presence presence = room.presence;
+        Presence.Update update = presence.flush();
+
+        // Snapshots go first, their version makes these clients skip the deltas
+        for (EncodedFrame snapshot : update.snapshot) {
+            for (ClientConnection client : update.waiting) {
+                if (!client.isClosed()) {
+                    client.shard.send(client, snapshot.retain());
+                }
+            }
+            snapshot.release();
+        }
+        for (EncodedFrame delta : update.deltas) {
+            fanOut(room, 0, delta);
+            metrics.presenceUpdates.increment();
+        }
+
+        if (room.size() > 0) {
+            announce(room, update.joined, " joined #" + room.name, Constants.MESSAGE_TYPE_USER_JOIN);
+            announce(room, update.left, " left #" + room.name, Constants.MESSAGE_TYPE_USER_LEAVE);
         }
+        if (update.joined.size() + update.left.size() > 1) {
+            System.out.println("👥 Presence batched in #" + room.name + ": " + presence.getChanges()
+                + " changes sent in " + presence.getUpdates() + " updates so far");
+        }
+    }
+
+    // One chat line per window, however many users it covers
+    private void announce(Room room, List<String> usernames, String action, String messageType) {
+        if (usernames.isEmpty()) {
+            return;
+        }
+        String who;
+        if (usernames.size() == 1) {
+            who = usernames.get(0);
+        } else if (usernames.size() <= 3) {
+            who = String.join(", ", usernames.subList(0, usernames.size() - 1))
+                + " and " + usernames.get(usernames.size() - 1);
+        } else {
+            who = usernames.size() + " users";
+        }
+        User sender = new User(usernames.size() == 1 ? usernames.get(0) : "System");
+        broadcastServerMessage(room, new Message(sender, who + action, messageType));
+    }
+
+    // False if someone else is online under that name
+    boolean registerUser(ClientConnection client, User user) {
+        return clients.registerUser(client, user);
+    }
+
+    // Straight to the recipient's queue and back to the sender's, from the sender's reading
+    // thread. The sender is the connection's user, whatever the frame says.
+    void sendDirect(ClientConnection from, Message message) {
+        ClientConnection to = clients.findUser(message.getRecipient());
+        if (to == null || to.isClosed()) {
+            from.sendFrame(new EncodedFrame(FrameCodec.encodeError(message.getRecipient() + " is not online")));
+            return;
+        }
+        Message direct = new Message(from.getUser(), message.getContent(), message.getMessageType(),
+            message.getTimestamp());
+        direct.setRecipient(to.getUser().getUsername());
+        EncodedFrame frame = new EncodedFrame(FrameCodec.encodeDirect(direct));
+        to.sendFrame(frame);
+        if (to != from) {
+            from.sendFrame(frame);
+        }
+    }
+
+    void joinRoom(ClientConnection client, String room, long lastSequence) {
+        publishMembership(MessageEvent.Kind.ROOM_JOINED, client, room, null, lastSequence);
+    }
+
+    void leaveRoom(ClientConnection client, String room) {
+        publishMembership(MessageEvent.Kind.ROOM_LEFT, client, room, null, 0);
+    }
+
+    // Leaves every room the client is in
+    public void removeUser(ClientConnection client) {
+        publishMembership(MessageEvent.Kind.USER_LEFT, client, null, null, 0);
+    }
+
+    void changeStatus(ClientConnection client, String status) {
+        publishMembership(MessageEvent.Kind.STATUS_CHANGED, client, null, status, 0);
+    }
+
+    // A client that missed a delta gets the room's whole list again
+    void requestPresence(ClientConnection client, String room) {
+        publishMembership(MessageEvent.Kind.PRESENCE_REQUESTED, client, room, null, 0);
+    }
+
+    private void publishMembership(MessageEvent.Kind kind, ClientConnection client, String room,
+            String status, long lastSequence) {
+        long slot = controlRing.next();
+        MessageEvent event = controlRing.get(slot);
+        event.kind = kind;
+        event.client = client;
+        event.room = room;
+        event.status = status;
+        event.lastSequence = lastSequence;
+        controlRing.publish(slot);
+    }
+
+    // Large messages, and anything after them from the same client until they are handled, take
+    // the bulk lane. Null if that lane is shed because the server is overloaded.
+    RingBuffer<MessageEvent> laneFor(ClientConnection client, int bodyLength) {
+        if (bodyLength >= Constants.BULK_MESSAGE_BYTES || client.bulkInFlight.get() > 0) {
+            if (isOverloaded()) {
+                return null;
+            }
+            client.bulkInFlight.incrementAndGet();
+            return bulkRing;
+        }
+        return messageRing;
+    }
+
+    RingBuffer<MessageEvent> bulkLane() {
+        return bulkRing;
+    }
+
+    // The broadcaster is behind by more than the watermark. Chat messages still go through and
+    // wait for room in the ring, bulk messages and status changes are refused until it catches up.
+    boolean isOverloaded() {
+        long watermark = (long) (messageRing.capacity() + bulkRing.capacity())
+            * rateLimits.getShedWatermarkPercent() / 100;
+        return messageRing.depth() + bulkRing.depth() > watermark;
+    }
+
+    public RateLimits getRateLimits() {
+        return rateLimits;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Whether a client can join the room, the broadcaster checks again before creating it
+    boolean acceptsRoom(String name) {
+        return rooms.size() < Constants.MAX_ROOMS || rooms.containsKey(name);
+    }
+
+    // Names and member counts, sorted by name. Counts are as of the last membership change the
+    // broadcaster handled.
+    Map<String, Integer> listRooms() {
+        Map<String, Integer> list = new TreeMap<>();
+        for (Room room : rooms.values()) {
+            if (room.size() > 0) {
+                list.put(room.name, room.size());
+            }
+        }
+        return list;
+    }
+    
+    // Disconnects off the calling thread
+    void evict(ClientConnection client) {
+        monitorExecutor.execute(client::disconnect);
     }
     
-    public void removeClient(ClientHandler client) {
+    public void removeClient(ClientConnection client) {
         clients.remove(client);
+        metrics.disconnects.increment();
+        FlightEvents.clientDisconnected(client.id, client.describe(), client.messagesReceived,
+            client.getDroppedMessages());
         if (client.getUser() != null) {
-            removeUser(client.getUser());
+            removeUser(client);
         }
-        System.out.println("➖ Client disconnected. Total clients: " + clients.size());
+        System.out.println("➖ Client disconnected. Total clients: " + clients.size()
+            + ", users: " + clients.userCount());
     }
     
     public void stop() {
         isRunning.set(false);
         clientExecutor.shutdown();
+        monitorExecutor.shutdownNow();
+        metrics.unregister();
+        for (BroadcastShard shard : shards) {
+            shard.stop();
+        }
+        if (journal != null) {
+            journal.stop();
+        }
+        
+        if (eventLoops != null) {
+            for (EventLoop eventLoop : eventLoops) {
+                eventLoop.stop();
+            }
+        }
         
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
         } catch (IOException e) {
             System.out.println("Error closing server socket");
         }
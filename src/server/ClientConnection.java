@@ -0,0 +1,452 @@
+package server;
+
+import model.Message;
+import model.User;
+import protocol.EncodedFrame;
+import protocol.FrameCodec;
+import protocol.FrameType;
+import protocol.Handshake;
+import protocol.LimitExceededException;
+import protocol.MessageView;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import utils.Constants;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Join/leave/relay behaviour shared by the threaded and the NIO connection types
+public abstract class ClientConnection {
+    private static final boolean TRACING = Constants.TRACE_SAMPLE_RATE > 0;
+
+    protected final ChatServer server;
+    protected final ServerMetrics metrics;
+    protected volatile User user;
+    protected final OutboundQueue outbound;
+    // Reused for every incoming message, only touched by the reading thread
+    private final MessageView incoming;
+    // Rooms this client asked to be in, as the reading thread sees it. The broadcaster takes out
+    // a room it refused to create. The room of the previous message is kept to check the next
+    // one without decoding it.
+    private final Set<String> rooms;
+    private String lastRoom;
+    private byte[] lastRoomName;
+    // The same, owned by the broadcaster thread, which does the actual subscribing
+    final Map<String, Subscription> subscriptions;
+    protected volatile boolean closing;
+    private final AtomicBoolean closed;
+    private final AtomicBoolean evicted;
+    // Owned by the SlowConsumerMonitor thread
+    long lagWarnedAtNanos;
+    // Fan-out shard this connection was assigned to on accept
+    BroadcastShard shard;
+    // Numbered on accept, identifies the connection in flight recordings
+    int id;
+    // Messages read so far, owned by the reading thread
+    long messagesReceived;
+    // Where the server's registry keeps it
+    StripedRegistry.Handle<ClientConnection> registration;
+    // Messages from this client in the broadcaster's bulk lane and not handled yet. While there
+    // are any, its other messages follow them there, so they cannot overtake.
+    final AtomicInteger bulkInFlight;
+    // What this client may still send, owned by the reading thread
+    private final TokenBucket messageTokens;
+    private final TokenBucket byteTokens;
+    // A notice went out since the last message that was let through, one per episode is enough
+    private boolean throttled;
+
+    protected ClientConnection(ChatServer server) {
+        this.server = server;
+        this.metrics = server.getMetrics();
+        this.outbound = new OutboundQueue(Constants.OUTBOUND_QUEUE_CAPACITY,
+                OverflowPolicy.valueOf(Constants.OUTBOUND_OVERFLOW_POLICY.toUpperCase()),
+                Constants.OUTBOUND_BLOCK_TIMEOUT_MILLIS);
+        this.closed = new AtomicBoolean(false);
+        this.bulkInFlight = new AtomicInteger();
+        this.evicted = new AtomicBoolean(false);
+        this.incoming = new MessageView();
+        this.rooms = ConcurrentHashMap.newKeySet();
+        this.subscriptions = new HashMap<>();
+        this.messageTokens = new TokenBucket();
+        this.byteTokens = new TokenBucket();
+    }
+
+    // Returns false if the connection has to be closed
+    protected boolean acceptPreamble(ByteBuffer preamble) {
+        switch (Handshake.check(preamble)) {
+            case OK:
+                return true;
+            case LEGACY_CLIENT:
+                System.out.println("⚠️  Rejected client using Java serialization, an update is required");
+                sendFrame(new EncodedFrame(Handshake.legacyNotice()));
+                break;
+            case UNSUPPORTED_VERSION:
+                System.out.println("⚠️  Rejected client with unsupported protocol version");
+                sendFrame(new EncodedFrame(FrameCodec.encodeError("Unsupported protocol version, please update your client")));
+                break;
+            default:
+                System.out.println("⚠️  Rejected connection with unknown protocol");
+        }
+        closeAfterSend();
+        return false;
+    }
+
+    // Frames start at the type byte
+    protected void onFrame(ByteBuffer frame) throws IOException {
+        long receivedAtNanos = System.nanoTime();
+        metrics.bytesIn.add(FrameCodec.HEADER_SIZE + frame.remaining());
+        byte type = frame.get();
+        if (closing) {
+            return;
+        }
+        if (user == null) {
+            if (type != FrameType.HELLO) {
+                throw new StreamCorruptedException("Expected HELLO, got frame type " + type);
+            }
+            User hello;
+            try {
+                hello = FrameCodec.decodeHello(frame);
+            } catch (LimitExceededException e) {
+                System.out.println("⚠️  Rejected HELLO: " + e.getMessage());
+                sendFrame(new EncodedFrame(FrameCodec.encodeError(e.getMessage())));
+                closeAfterSend();
+                return;
+            }
+            onUser(hello, FrameCodec.decodeLastSequence(frame));
+        } else if (!withinRate(frame.remaining())) {
+            // Dropped before anything is decoded or queued. Joins, lists and snapshot requests
+            // count as much as messages.
+            return;
+        } else if (type == FrameType.MESSAGE) {
+            onMessage(incoming.wrap(frame), receivedAtNanos);
+        } else if (type == FrameType.STATUS) {
+            if (server.isOverloaded()) {
+                metrics.shed.increment();
+                throttle(Constants.PRESENCE_BATCH_MILLIS, "Server busy, status not changed");
+                return;
+            }
+            String status;
+            try {
+                status = FrameCodec.decodeStatus(frame);
+            } catch (LimitExceededException e) {
+                sendFrame(new EncodedFrame(FrameCodec.encodeError(e.getMessage())));
+                return;
+            }
+            server.changeStatus(this, status);
+            throttled = false;
+        } else if (type == FrameType.PRESENCE_SNAPSHOT) {
+            String room = FrameCodec.decodeRoom(frame);
+            if (rooms.contains(room)) {
+                server.requestPresence(this, room);
+            }
+        } else if (type == FrameType.ROOM_JOIN) {
+            String room = FrameCodec.decodeRoom(frame);
+            onJoinRoom(room, FrameCodec.decodeLastSequence(frame));
+        } else if (type == FrameType.ROOM_LEAVE) {
+            onLeaveRoom(FrameCodec.decodeRoom(frame));
+        } else if (type == FrameType.ROOM_LIST) {
+            sendFrame(new EncodedFrame(FrameCodec.encodeRoomList(server.listRooms())));
+        } else if (type == FrameType.DIRECT) {
+            Message direct;
+            try {
+                direct = FrameCodec.decodeDirect(frame, Constants.MAX_USERNAME_BYTES,
+                    FrameCodec.MAX_DIRECT_CONTENT_SIZE);
+            } catch (LimitExceededException e) {
+                sendFrame(new EncodedFrame(FrameCodec.encodeError(e.getMessage())));
+                return;
+            }
+            FlightEvents.messageReceived(FlightEvents.ingressId(id, ++messagesReceived), user.getUsername(), null,
+                frame.limit(), receivedAtNanos);
+            server.sendDirect(this, direct);
+            metrics.messagesIn.increment();
+            throttled = false;
+        } else {
+            throw new StreamCorruptedException("Unexpected frame type " + type);
+        }
+    }
+
+    // The first frame on every connection identifies the user, and says where a reconnecting
+    // client left off in the default room
+    protected void onUser(User user, long lastSequence) {
+        if (!server.registerUser(this, user)) {
+            System.out.println("⚠️  Rejected duplicate username: " + user.getUsername());
+            sendFrame(new EncodedFrame(FrameCodec.encodeError(Handshake.usernameTaken(user.getUsername()))));
+            closeAfterSend();
+            return;
+        }
+        sendFrame(new EncodedFrame(FrameCodec.encodeWelcome()));
+        this.user = user;
+        System.out.println("User connected: " + user.getUsername());
+
+        // Everyone starts out in the default room, a reconnecting client rejoins its other
+        // rooms itself
+        onJoinRoom(Constants.DEFAULT_ROOM, lastSequence);
+    }
+
+    // Recent history of the room first, or only what was missed on a reconnect, then live
+    // traffic. The broadcaster confirms the join ahead of the history. This client gets the
+    // room's member list and everyone else in it a delta.
+    private void onJoinRoom(String room, long lastSequence) {
+        if (room.isEmpty() || room.length() > Constants.MAX_ROOM_NAME_LENGTH || room.startsWith("@")) {
+            refuseJoin(room, "Room names are 1 to " + Constants.MAX_ROOM_NAME_LENGTH
+                + " characters long and do not start with @");
+            return;
+        }
+        if (rooms.contains(room)) {
+            return;
+        }
+        if (rooms.size() >= Constants.MAX_ROOMS_PER_CONNECTION) {
+            refuseJoin(room, "You can be in at most " + Constants.MAX_ROOMS_PER_CONNECTION
+                + " rooms, leave one first");
+            return;
+        }
+        if (!server.acceptsRoom(room)) {
+            refuseRoom(room);
+            return;
+        }
+        rooms.add(room);
+        server.joinRoom(this, room, lastSequence);
+    }
+
+    // The server has as many rooms as it keeps. Called by the broadcaster too, for a join that
+    // got past the check above at the same time as others.
+    void refuseRoom(String room) {
+        refuseJoin(room, "There are too many rooms to open #" + room + ", join an existing one");
+    }
+
+    // The warning says why, the ROOM_LEAVE tells the client it is not in the room after all
+    private void refuseJoin(String room, String reason) {
+        rooms.remove(room);
+        sendFrame(new EncodedFrame(FrameCodec.encodeWarning(reason)));
+        sendFrame(new EncodedFrame(FrameCodec.encodeRoomLeave(room)));
+    }
+
+    private void onLeaveRoom(String room) {
+        if (room.equals(Constants.DEFAULT_ROOM)) {
+            sendFrame(new EncodedFrame(FrameCodec.encodeWarning("Everyone stays in #" + room)));
+            return;
+        }
+        if (rooms.remove(room)) {
+            lastRoom = null;
+            server.leaveRoom(this, room);
+        }
+    }
+
+    // The bytes are copied into the ring as they are, the message is never decoded. Only the
+    // room name is looked at, and only when it differs from the previous message's.
+    protected void onMessage(MessageView message, long receivedAtNanos) {
+        if (message.bodyLength() > FrameCodec.MAX_MESSAGE_BODY_SIZE) {
+            sendFrame(new EncodedFrame(FrameCodec.encodeError("Message too large, at most "
+                + FrameCodec.MAX_MESSAGE_BODY_SIZE + " bytes")));
+            return;
+        }
+        if (lastRoom == null || !message.isRoom(lastRoomName)) {
+            String room = message.getRoom();
+            if (!rooms.contains(room)) {
+                sendFrame(new EncodedFrame(FrameCodec.encodeWarning("You are not in #" + room)));
+                return;
+            }
+            lastRoom = room;
+            lastRoomName = room.getBytes(StandardCharsets.UTF_8);
+        }
+
+        long decodedAtNanos = TRACING && message.isTraced() ? System.nanoTime() : 0;
+        if (decodedAtNanos != 0) {
+            metrics.traceDecode.record(decodedAtNanos - receivedAtNanos);
+        }
+        long ingressId = FlightEvents.ingressId(id, ++messagesReceived);
+        FlightEvents.messageReceived(ingressId, user.getUsername(), lastRoom, message.bodyLength(), receivedAtNanos);
+        RingBuffer<MessageEvent> lane = server.laneFor(this, message.bodyLength());
+        if (lane == null) {
+            metrics.shed.increment();
+            throttle(Constants.PRESENCE_BATCH_MILLIS, "Server busy, message not sent");
+            return;
+        }
+        long claimedAtNanos = System.nanoTime();
+        long slot = claim(lane);
+        if (slot < 0) {
+            if (lane == server.bulkLane()) {
+                bulkInFlight.decrementAndGet();
+            }
+            metrics.shed.increment();
+            throttle(Constants.PRESENCE_BATCH_MILLIS, "Server busy, message not sent");
+            return;
+        }
+        try {
+            MessageEvent event = lane.get(slot);
+            MessageEvent.copy(event, message, lastRoom);
+            event.client = lane == server.bulkLane() ? this : null;
+            event.ingressId = ingressId;
+            event.enqueuedAtNanos = 0;
+            if (decodedAtNanos != 0) {
+                event.enqueuedAtNanos = System.nanoTime();
+                metrics.traceEnqueue.record(event.enqueuedAtNanos - decodedAtNanos);
+            }
+        } finally {
+            lane.publish(slot);
+        }
+        FlightEvents.messageEnqueued(ingressId, lane == server.bulkLane() ? Lane.BULK : Lane.CHAT, lane,
+            claimedAtNanos);
+        metrics.messagesIn.increment();
+        throttled = false;
+    }
+
+    // A slot in the lane, waiting for the broadcaster while it is full. -1 if this reader
+    // cannot wait.
+    protected long claim(RingBuffer<MessageEvent> lane) {
+        return lane.next();
+    }
+
+    // Takes from both buckets, or from neither. The limits are read on every call so changes to
+    // them apply at once.
+    private boolean withinRate(int bytes) {
+        RateLimits limits = server.getRateLimits();
+        long now = System.nanoTime();
+        int messagesPerSecond = limits.getMessagesPerSecond();
+        int messageBurst = limits.getMessageBurst();
+        int bytesPerSecond = limits.getBytesPerSecond();
+        int byteBurst = limits.getByteBurst();
+        if (!messageTokens.tryTake(1, messagesPerSecond, messageBurst, now)) {
+            metrics.throttled.increment();
+            throttle(messageTokens.millisUntil(1, messagesPerSecond, messageBurst), "Sending too fast");
+            return false;
+        }
+        if (!byteTokens.tryTake(bytes, bytesPerSecond, byteBurst, now)) {
+            // The message was not sent after all
+            messageTokens.putBack(1, messageBurst);
+            metrics.throttled.increment();
+            throttle(byteTokens.millisUntil(bytes, bytesPerSecond, byteBurst), "Sending too much");
+            return false;
+        }
+        return true;
+    }
+
+    private void throttle(long retryAfterMillis, String reason) {
+        if (throttled) {
+            return;
+        }
+        throttled = true;
+        System.out.println("🚦 Throttled " + describe() + ": " + reason);
+        sendUrgentFrame(new EncodedFrame(FrameCodec.encodeThrottled(retryAfterMillis, reason)));
+    }
+
+    public void sendMessage(Message message) {
+        EncodedFrame frame = FrameCodec.encodeMessage(message);
+        sendFrame(frame);
+        frame.release();
+    }
+
+    // Only queues the frame, the connection's own writer puts it on the socket. The queue
+    // takes its own reference, the caller keeps theirs.
+    public void sendFrame(EncodedFrame frame) {
+        if (outbound.offer(frame.retain())) {
+            onFrameQueued();
+            return;
+        }
+        frame.release();
+        if (!isClosed() && !closing && evicted.compareAndSet(false, true)) {
+            System.out.println("🐢 Outbound queue full for " + describe() + ", disconnecting");
+            // Fan-out threads must not wait on this queue any more, nor block publishing the
+            // leave message into the ring they are downstream of
+            outbound.close();
+            server.evict(this);
+        }
+    }
+
+    // Jumps the queue, used for notices the client should see even when it is behind
+    public void sendUrgentFrame(EncodedFrame frame) {
+        if (outbound.offerFirst(frame.retain())) {
+            onFrameQueued();
+        } else {
+            frame.release();
+        }
+    }
+
+    protected abstract void onFrameQueued();
+
+    // Writers pass every frame they take from the outbound queue through here, null included
+    protected EncodedFrame onFrameSent(EncodedFrame frame) {
+        if (frame != null) {
+            metrics.messagesOut.increment();
+            metrics.bytesOut.add(frame.length());
+            long tracedAtNanos = frame.getTracedAtNanos();
+            if (tracedAtNanos != 0) {
+                metrics.traceWrite.record(System.nanoTime() - tracedAtNanos);
+            }
+        }
+        return frame;
+    }
+
+    // Buffers owned by the connection itself, queued frames are counted separately
+    protected abstract long getBufferBytes();
+
+    // Shuts our side down once queued frames are out and closes when the client hangs up,
+    // so a rejected client still gets to read the reason
+    protected void closeAfterSend() {
+        closing = true;
+        outbound.close();
+        onFrameQueued();
+    }
+
+    protected abstract void closeTransport() throws IOException;
+
+    public void disconnect() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            if (user != null) {
+                // Announced by the server's presence update
+                System.out.println("User disconnected: " + user.getUsername());
+            }
+
+            outbound.close();
+            outbound.clear();
+            server.removeClient(this);
+            closeTransport();
+
+        } catch (IOException e) {
+            System.out.println("Error during client disconnect");
+        }
+    }
+
+    public int getPendingMessages() {
+        return outbound.size();
+    }
+
+    public long getPendingBytes() {
+        return outbound.getPendingBytes();
+    }
+
+    // Everything this connection keeps alive: its buffers plus the frames waiting for it.
+    // Bounded by the buffer sizes and the outbound limits, however long the session runs.
+    public long getRetainedBytes() {
+        return getBufferBytes() + getPendingBytes();
+    }
+
+    public long getLagMillis() {
+        return outbound.getOldestWaitNanos() / 1_000_000;
+    }
+
+    public long getDroppedMessages() {
+        return outbound.getDropped();
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    protected String describe() {
+        return user != null ? user.getUsername() : "unknown";
+    }
+}
@@ -1,102 +1,143 @@
 package server;
 
-import model.Message;
-import model.User;
+import protocol.CoalescingWriter;
+import protocol.EncodedFrame;
+import protocol.FrameCodec;
+import protocol.Handshake;
+import utils.Constants;
 import java.io.*;
 import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+public class ClientHandler extends ClientConnection implements Runnable {
+    private static final int REJECT_LINGER_MILLIS = 5000;
+    private static final int STREAM_BUFFER_SIZE = 8192;
 
-public class ClientHandler implements Runnable {
     private Socket socket;
-    private ChatServer server;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
-    private User user;
-    private BlockingQueue<Message> messageQueue;
+    private Executor writerExecutor;
+    private DataOutputStream output;
+    private DataInputStream input;
+    private final ByteBuffer readBuffer;
 
-    public ClientHandler(Socket socket, ChatServer server, BlockingQueue<Message> messageQueue) {
+    public ClientHandler(Socket socket, ChatServer server, Executor writerExecutor) {
+        super(server);
         this.socket = socket;
-        this.server = server;
-        this.messageQueue = messageQueue;
+        this.writerExecutor = writerExecutor;
+        this.readBuffer = ByteBuffer.allocate(Constants.READ_BUFFER_SIZE);
     }
 
     @Override
     public void run() {
         try {
-            output = new ObjectOutputStream(socket.getOutputStream());
-            input = new ObjectInputStream(socket.getInputStream());
-
-            // Read user information
-            user = (User) input.readObject();
-            System.out.println("User connected: " + user.getUsername());
-
-            // Add user to server's user list
-            server.addUser(user);
+            output = new DataOutputStream(new BufferedOutputStream(new TimedOutputStream(socket.getOutputStream()),
+                Constants.WRITE_COALESCE_MAX_BYTES));
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE));
+
+            // Check protocol magic and version before anything else
+            byte[] preamble = new byte[Handshake.PREAMBLE_SIZE];
+            input.readFully(preamble);
+            if (!acceptPreamble(ByteBuffer.wrap(preamble))) {
+                // No writer yet, send the reason from here and wait for the client to hang up
+                writeQueuedFrames();
+                while (input.read() != -1) {
+                    // Discard
+                }
+                return;
+            }
 
-            // Notify all clients about new user
-            Message joinMessage = new Message(user, user.getUsername() + " joined the chat", "USER_JOIN");
-            messageQueue.put(joinMessage);
+            writerExecutor.execute(this::writeQueuedFrames);
 
-            // Start listening for messages
+            // Read user information, then listen for messages
             while (!socket.isClosed()) {
                 try {
-                    Message message = (Message) input.readObject();
-                    if (message != null) {
-                        messageQueue.put(message);
-                    }
+                    onFrame(FrameCodec.readFrame(input, readBuffer));
                 } catch (EOFException e) {
                     break;
                 }
             }
 
-        } catch (IOException | ClassNotFoundException | InterruptedException e) {
-            System.out.println("Client handler error for " + (user != null ? user.getUsername() : "unknown"));
+        } catch (IOException e) {
+            if (!closing && !isClosed()) {
+                System.out.println("Client handler error for " + describe());
+            }
         } finally {
             disconnect();
         }
     }
 
-    public void sendMessage(Message message) {
+    // Writer loop, the only place that touches the output stream
+    private void writeQueuedFrames() {
         try {
-            if (output != null) {
-                output.writeObject(message);
-                output.flush();
+            CoalescingWriter.FrameSource source = new CoalescingWriter.FrameSource() {
+                @Override
+                public EncodedFrame take() throws InterruptedException {
+                    return onFrameSent(outbound.take());
+                }
+
+                @Override
+                public EncodedFrame poll(long timeoutNanos) throws InterruptedException {
+                    return onFrameSent(outbound.poll(timeoutNanos));
+                }
+            };
+            new CoalescingWriter(source, output, Constants.WRITE_COALESCE_MAX_BYTES,
+                Constants.WRITE_COALESCE_MAX_DELAY_MICROS).writeAll();
+
+            if (closing) {
+                // The reader sees EOF once the client hangs up, or gives up after the linger time
+                socket.shutdownOutput();
+                socket.setSoTimeout(REJECT_LINGER_MILLIS);
             }
         } catch (IOException e) {
-            System.out.println("Error sending message to " + user.getUsername());
+            if (!isClosed()) {
+                System.out.println("Error sending message to " + describe());
+            }
+            disconnect();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             disconnect();
         }
     }
 
-    private void disconnect() {
-        try {
-            if (user != null) {
-                System.out.println("User disconnected: " + user.getUsername());
-
-                // Notify about user leaving
-                try {
-                    Message leaveMessage = new Message(user, user.getUsername() + " left the chat", "USER_LEAVE");
-                    messageQueue.put(leaveMessage);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
+    // Writes to the socket that stall show up as WriteBlocked events
+    private final class TimedOutputStream extends FilterOutputStream {
+        TimedOutputStream(OutputStream out) {
+            super(out);
+        }
 
-                server.removeClient(this);
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (!FlightEvents.isWriteBlockedEnabled()) {
+                out.write(bytes, offset, length);
+                return;
             }
+            FlightEvents.WriteBlocked event = new FlightEvents.WriteBlocked();
+            event.begin();
+            try {
+                out.write(bytes, offset, length);
+            } finally {
+                // Also when the connection is closed on a writer stuck here
+                FlightEvents.writeBlocked(event, ClientHandler.this);
+            }
+        }
+    }
 
-            if (input != null)
-                input.close();
-            if (output != null)
-                output.close();
-            if (socket != null)
-                socket.close();
+    @Override
+    protected long getBufferBytes() {
+        // Read buffer plus the stream buffers, all fixed size
+        return readBuffer.capacity() + Constants.WRITE_COALESCE_MAX_BYTES + STREAM_BUFFER_SIZE;
+    }
 
-        } catch (IOException e) {
-            System.out.println("Error during client disconnect");
-        }
+    @Override
+    protected void onFrameQueued() {
+        // The writer is blocked in take() and wakes up by itself
     }
 
-    public User getUser() {
-        return user;
+    @Override
+    protected void closeTransport() throws IOException {
+        // Closing the socket closes both streams, closing the buffered output first would
+        // try to flush into a connection that may already be gone
+        if (socket != null)
+            socket.close();
     }
 }
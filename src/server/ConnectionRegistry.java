@@ -0,0 +1,60 @@
+package server;
+
+import model.User;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Every open connection and, once it has said HELLO, its user by name. The one place the server
+// keeps track of who is connected; both counts are cheap to read for the log lines.
+public class ConnectionRegistry implements Iterable<ClientConnection> {
+    private final StripedRegistry<ClientConnection> connections;
+    private final ConcurrentHashMap<String, ClientConnection> usersByName;
+
+    public ConnectionRegistry(int stripes) {
+        this.connections = new StripedRegistry<>(stripes);
+        this.usersByName = new ConcurrentHashMap<>();
+    }
+
+    public void add(ClientConnection client) {
+        client.registration = connections.add(client);
+    }
+
+    // Also gives up the client's username. False if it was already removed.
+    public boolean remove(ClientConnection client) {
+        if (client.registration == null || !connections.remove(client.registration)) {
+            return false;
+        }
+        User user = client.getUser();
+        if (user != null) {
+            usersByName.remove(user.getUsername(), client);
+        }
+        return true;
+    }
+
+    // False if someone else is online under that name. A connection that is already going away
+    // gives the name up, so a client reconnecting before its old connection was noticed as
+    // dropped is not locked out.
+    public boolean registerUser(ClientConnection client, User user) {
+        ClientConnection holder = usersByName.putIfAbsent(user.getUsername(), client);
+        return holder == null
+            || (holder.isClosed() && usersByName.replace(user.getUsername(), holder, client));
+    }
+
+    // Null if nobody is online under that name
+    public ClientConnection findUser(String username) {
+        return usersByName.get(username);
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    public int userCount() {
+        return usersByName.size();
+    }
+
+    @Override
+    public Iterator<ClientConnection> iterator() {
+        return connections.iterator();
+    }
+}
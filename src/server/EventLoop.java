@@ -0,0 +1,118 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One selector thread serving reads and writes for many non-blocking connections
+public final class EventLoop implements Runnable {
+    private final String name;
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    // Created on start, so the loop is fully built before it runs
+    private Thread thread;
+    private volatile boolean running;
+
+    public EventLoop(String name) throws IOException {
+        this.name = name;
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void register(NioClientHandler handler) {
+        execute(() -> {
+            try {
+                handler.register(selector);
+            } catch (IOException e) {
+                handler.disconnect();
+            }
+        });
+    }
+
+    // Selector state may only be touched from the loop thread, everything else goes through here
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    NioClientHandler handler = (NioClientHandler) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            handler.handleRead();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            handler.handleWrite();
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Closed from another thread while we were processing it
+                        handler.disconnect();
+                    } catch (RuntimeException e) {
+                        // A bug or a bad frame on one connection must not take the others down
+                        System.out.println("❌ Error on connection " + handler.describe() + ", closing it: " + e);
+                        handler.disconnect();
+                    }
+                }
+
+                runTasks();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                System.out.println("❌ Event loop " + name + " failed: " + e.getMessage());
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.out.println("❌ Event loop task failed on " + name + ": " + e);
+            }
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((NioClientHandler) key.attachment()).disconnect();
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            System.out.println("Error closing event loop " + name);
+        }
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+}
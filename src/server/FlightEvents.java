@@ -0,0 +1,239 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+// JDK Flight Recorder events along a message's way through the server. They cost nothing until a
+// recording enables them, e.g. -XX:StartFlightRecording, and little enough then to keep one
+// running in production. A message is known by its ingress id, the connection id in the high
+// half and that connection's message count in the low half, until the broadcaster numbers it;
+// BroadcastStarted carries both. The helpers follow the usual new/shouldCommit pattern behind a
+// check of the event type, so nothing is allocated while recording is off, also where the JIT
+// does not manage to eliminate the event object.
+final class FlightEvents {
+    private FlightEvents() {
+    }
+
+    @Name("chat.server.MessageReceived")
+    @Label("Message Received")
+    @Category({"Chat", "Server"})
+    @StackTrace(false)
+    static final class MessageReceived extends Event {
+        @Label("Ingress Id")
+        long ingressId;
+        @Label("User")
+        String user;
+        @Label("Room")
+        String room;
+        @Label("Size")
+        @DataAmount
+        int size;
+        @Label("Decode Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long decodeTime;
+    }
+
+    @Name("chat.server.MessageEnqueued")
+    @Label("Message Enqueued")
+    @Category({"Chat", "Server"})
+    @StackTrace(false)
+    static final class MessageEnqueued extends Event {
+        @Label("Ingress Id")
+        long ingressId;
+        @Label("Lane")
+        String lane;
+        @Label("Queue Depth")
+        long depth;
+        @Label("Wait Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long waitTime;
+    }
+
+    @Name("chat.server.BroadcastStarted")
+    @Label("Broadcast Started")
+    @Category({"Chat", "Server"})
+    @StackTrace(false)
+    static final class BroadcastStarted extends Event {
+        @Label("Sequence")
+        long sequence;
+        @Label("Ingress Id")
+        long ingressId;
+        @Label("Room")
+        String room;
+        @Label("Recipients")
+        int recipients;
+        @Label("Size")
+        @DataAmount
+        int size;
+    }
+
+    @Name("chat.server.BroadcastFinished")
+    @Label("Broadcast Finished")
+    @Category({"Chat", "Server"})
+    @StackTrace(false)
+    static final class BroadcastFinished extends Event {
+        @Label("Sequence")
+        long sequence;
+        @Label("Shard")
+        int shard;
+        @Label("Recipients")
+        int recipients;
+        @Label("Fan-out Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long fanOutTime;
+    }
+
+    // A write that could not go out at once, from the moment it stalled until the socket took it
+    @Name("chat.server.WriteBlocked")
+    @Label("Write Blocked")
+    @Category({"Chat", "Server"})
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class WriteBlocked extends Event {
+        @Label("Connection")
+        int connection;
+        @Label("User")
+        String user;
+        @Label("Queued Messages")
+        int queued;
+    }
+
+    @Name("chat.server.ClientConnected")
+    @Label("Client Connected")
+    @Category({"Chat", "Server"})
+    @StackTrace(false)
+    static final class ClientConnected extends Event {
+        @Label("Connection")
+        int connection;
+        @Label("Address")
+        String address;
+    }
+
+    @Name("chat.server.ClientDisconnected")
+    @Label("Client Disconnected")
+    @Category({"Chat", "Server"})
+    @StackTrace(false)
+    static final class ClientDisconnected extends Event {
+        @Label("Connection")
+        int connection;
+        @Label("User")
+        String user;
+        @Label("Messages Received")
+        long messages;
+        @Label("Messages Dropped")
+        long dropped;
+    }
+
+    private static final EventType MESSAGE_RECEIVED = EventType.getEventType(MessageReceived.class);
+    private static final EventType MESSAGE_ENQUEUED = EventType.getEventType(MessageEnqueued.class);
+    private static final EventType BROADCAST_STARTED = EventType.getEventType(BroadcastStarted.class);
+    private static final EventType BROADCAST_FINISHED = EventType.getEventType(BroadcastFinished.class);
+    private static final EventType WRITE_BLOCKED = EventType.getEventType(WriteBlocked.class);
+
+    static long ingressId(int connection, long count) {
+        return (long) connection << 32 | (count & 0xFFFFFFFFL);
+    }
+
+    // Decode time runs from when the frame was read until now. Direct messages have no room.
+    static void messageReceived(long ingressId, String user, String room, int size, long receivedAtNanos) {
+        if (!MESSAGE_RECEIVED.isEnabled()) {
+            return;
+        }
+        MessageReceived event = new MessageReceived();
+        if (event.shouldCommit()) {
+            event.ingressId = ingressId;
+            event.user = user;
+            event.room = room;
+            event.size = size;
+            event.decodeTime = System.nanoTime() - receivedAtNanos;
+            event.commit();
+        }
+    }
+
+    // Wait time is how long claiming the ring slot took, until now
+    static void messageEnqueued(long ingressId, Lane lane, RingBuffer<MessageEvent> ring, long claimedAtNanos) {
+        if (!MESSAGE_ENQUEUED.isEnabled()) {
+            return;
+        }
+        MessageEnqueued event = new MessageEnqueued();
+        if (event.shouldCommit()) {
+            event.ingressId = ingressId;
+            event.lane = lane.name();
+            event.depth = ring.depth();
+            event.waitTime = System.nanoTime() - claimedAtNanos;
+            event.commit();
+        }
+    }
+
+    static void broadcastStarted(long sequence, long ingressId, String room, int recipients, int size) {
+        if (!BROADCAST_STARTED.isEnabled()) {
+            return;
+        }
+        BroadcastStarted event = new BroadcastStarted();
+        if (event.shouldCommit()) {
+            event.sequence = sequence;
+            event.ingressId = ingressId;
+            event.room = room;
+            event.recipients = recipients;
+            event.size = size;
+            event.commit();
+        }
+    }
+
+    static void broadcastFinished(long sequence, int shard, int recipients, long fanOutNanos) {
+        if (!BROADCAST_FINISHED.isEnabled()) {
+            return;
+        }
+        BroadcastFinished event = new BroadcastFinished();
+        if (event.shouldCommit()) {
+            event.sequence = sequence;
+            event.shard = shard;
+            event.recipients = recipients;
+            event.fanOutTime = fanOutNanos;
+            event.commit();
+        }
+    }
+
+    // Whether to time writes at all
+    static boolean isWriteBlockedEnabled() {
+        return WRITE_BLOCKED.isEnabled();
+    }
+
+    // Ends an event begun when a write stalled
+    static void writeBlocked(WriteBlocked event, ClientConnection client) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.connection = client.id;
+            event.user = client.describe();
+            event.queued = client.getPendingMessages();
+            event.commit();
+        }
+    }
+
+    static void clientConnected(int connection, String address) {
+        ClientConnected event = new ClientConnected();
+        if (event.shouldCommit()) {
+            event.connection = connection;
+            event.address = address;
+            event.commit();
+        }
+    }
+
+    static void clientDisconnected(int connection, String user, long messages, long dropped) {
+        ClientDisconnected event = new ClientDisconnected();
+        if (event.shouldCommit()) {
+            event.connection = connection;
+            event.user = user;
+            event.messages = messages;
+            event.dropped = dropped;
+            event.commit();
+        }
+    }
+}
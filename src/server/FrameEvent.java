@@ -0,0 +1,21 @@
+package server;
+
+import protocol.EncodedFrame;
+
+// Reusable ring buffer entry carrying one encoded frame to a broadcast shard or the journal,
+// or a client that joins a room on a shard
+public class FrameEvent {
+    EncodedFrame frame;
+    // The room whose members get the frame
+    Room room;
+    // Message sequence number, 0 for frames that are not numbered messages. For a joining
+    // client the last one it has already seen.
+    long sequence;
+    Subscription joining;
+    // Set when the frame is for this one client instead of everyone on the shard
+    ClientConnection recipient;
+    // When a room's frame was published, for the fan-out histogram
+    long publishedAtNanos;
+    // Members the shard queued the frame for
+    int recipients;
+}
@@ -0,0 +1,181 @@
+package server;
+
+import protocol.BufferPool;
+import protocol.EncodedFrame;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The most recent broadcast frames, kept encoded in one direct buffer outside the Java heap.
+// Limited both by message count and by bytes; the oldest frames are overwritten first. A
+// client joining a room gets that room's frames in here as one batch, without anything being
+// re-encoded, a reconnecting one only the messages it missed.
+public class HistoryRing {
+    // Frames after a given sequence, concatenated, null if there are none. lastSequence is the
+    // last one included, or the one asked for when nothing is. complete is false when
+    // some of the requested messages are no longer here.
+    public static final class Backlog {
+        public final EncodedFrame frames;
+        public final long lastSequence;
+        public final boolean complete;
+
+        Backlog(EncodedFrame frames, long lastSequence, boolean complete) {
+            this.frames = frames;
+            this.lastSequence = lastSequence;
+            this.complete = complete;
+        }
+    }
+
+    private final ByteBuffer storage;
+    private final long[] sequences;
+    private final String[] rooms;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final ReentrantLock lock;
+    private int head;
+    private int count;
+    private int writeOffset;
+    // Newest sequence appended, kept or not
+    private long lastSequence;
+
+    public HistoryRing(int maxMessages, int maxBytes) {
+        this.storage = ByteBuffer.allocateDirect(Math.max(0, maxBytes));
+        this.sequences = new long[Math.max(0, maxMessages)];
+        this.rooms = new String[sequences.length];
+        this.offsets = new int[sequences.length];
+        this.lengths = new int[sequences.length];
+        this.lock = new ReentrantLock();
+    }
+
+    // Copies the frame in, called by the broadcaster in sequence order
+    public void append(long sequence, String room, EncodedFrame frame) {
+        lock.lock();
+        try {
+            lastSequence = sequence;
+            int start = reserve(frame.length());
+            if (start >= 0) {
+                storage.position(start);
+                frame.copyTo(storage);
+                add(sequence, room, start, frame.length());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Same for a frame read back from the journal, positioned at its first byte
+    public void append(long sequence, String room, ByteBuffer frame) {
+        lock.lock();
+        try {
+            lastSequence = sequence;
+            int start = reserve(frame.remaining());
+            if (start >= 0) {
+                storage.put(start, frame, frame.position(), frame.remaining());
+                add(sequence, room, start, frame.remaining());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Makes room for length bytes and returns where they go, -1 if the frame cannot be kept
+    private int reserve(int length) {
+        if (sequences.length == 0) {
+            return -1;
+        }
+        if (length > storage.capacity()) {
+            // Keep the history contiguous rather than silently leaving this frame out
+            while (count > 0) {
+                evictOldest();
+            }
+            head = 0;
+            writeOffset = 0;
+            return -1;
+        }
+
+        int start = writeOffset;
+        if (start + length > storage.capacity()) {
+            // Wrap around; the frames left at the end are the oldest ones and go first
+            while (count > 0 && offsets[head] >= start) {
+                evictOldest();
+            }
+            start = 0;
+        }
+        int end = start + length;
+        while (count > 0 && (count == sequences.length
+                || (offsets[head] < end && offsets[head] + lengths[head] > start))) {
+            evictOldest();
+        }
+        return start;
+    }
+
+    private void add(long sequence, String room, int start, int length) {
+        int index = (head + count) % sequences.length;
+        sequences[index] = sequence;
+        rooms[index] = room;
+        offsets[index] = start;
+        lengths[index] = length;
+        count++;
+        writeOffset = start + length;
+    }
+
+    private void evictOldest() {
+        rooms[head] = null;
+        head = (head + 1) % sequences.length;
+        count--;
+    }
+
+    // Everything in the room newer than afterSequence in a single frame batch. 0 asks for the
+    // whole history, as for a new session. A sequence beyond the newest one was numbered by an
+    // earlier run without a journal, that client gets the whole history as well. Sequences are
+    // shared by all rooms, so nothing is missing as long as the oldest frame kept in any room
+    // directly follows afterSequence.
+    public Backlog backlogAfter(long afterSequence, String room) {
+        lock.lock();
+        try {
+            boolean renumbered = afterSequence > lastSequence;
+            long from = renumbered ? 0 : afterSequence;
+            boolean complete = !renumbered && (afterSequence == 0 || (count > 0
+                    ? sequences[head] <= afterSequence + 1
+                    : afterSequence == lastSequence));
+
+            int size = 0;
+            int first = -1;
+            for (int i = 0; i < count; i++) {
+                int index = (head + i) % sequences.length;
+                if (sequences[index] > from && room.equals(rooms[index])) {
+                    if (first < 0) {
+                        first = i;
+                    }
+                    size += lengths[index];
+                }
+            }
+            if (first < 0) {
+                return new Backlog(null, from, complete);
+            }
+
+            ByteBuffer batch = BufferPool.SHARED.acquire(size);
+            long last = from;
+            for (int i = first; i < count; i++) {
+                int index = (head + i) % sequences.length;
+                if (!room.equals(rooms[index])) {
+                    continue;
+                }
+                batch.put(batch.position(), storage, offsets[index], lengths[index]);
+                batch.position(batch.position() + lengths[index]);
+                last = sequences[index];
+            }
+            return new Backlog(new EncodedFrame(batch.flip(), BufferPool.SHARED), last, complete);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
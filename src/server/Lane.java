@@ -0,0 +1,46 @@
+package server;
+
+import protocol.EncodedFrame;
+import protocol.FrameType;
+import utils.Constants;
+
+// Traffic classes, highest priority first. Both the broadcaster and every connection's writer
+// serve them by weight, so a busy lane gets its share without holding up the others. Frames
+// within a lane keep their order; numbered messages all share the chat lane because clients
+// rely on seeing a room's sequence numbers in order.
+public enum Lane {
+    // Handshake replies, errors and warnings, room lists: small and rare
+    CONTROL(Constants.LANE_WEIGHT_CONTROL),
+    // Chat lines, history backlogs and direct messages
+    CHAT(Constants.LANE_WEIGHT_CHAT),
+    // Presence snapshots and deltas, which grow with room size and come in storms; oversized
+    // messages on their way into the broadcaster
+    BULK(Constants.LANE_WEIGHT_BULK);
+
+    private static final Lane[] LANES = values();
+
+    final int weight;
+
+    Lane(int weight) {
+        this.weight = Math.max(1, weight);
+    }
+
+    static Lane[] all() {
+        return LANES;
+    }
+
+    // Decided by frame type, callers do not have to say
+    static Lane of(EncodedFrame frame) {
+        switch (frame.type()) {
+            case FrameType.MESSAGE:
+            case FrameType.DIRECT:
+            case FrameType.TOO_FAR_BEHIND:
+                return CHAT;
+            case FrameType.PRESENCE_SNAPSHOT:
+            case FrameType.PRESENCE_DELTA:
+                return BULK;
+            default:
+                return CONTROL;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import protocol.MessageView;
+import utils.Constants;
+import java.nio.ByteBuffer;
+
+// Reusable ring buffer entry carrying one encoded MESSAGE body from a handler to the
+// broadcaster. The body buffer stays with the slot, so publishing copies bytes instead of
+// allocating a Message. Room membership and presence changes take the same path, which puts
+// them in one order with the messages.
+public class MessageEvent {
+    private static final int INITIAL_BODY_SIZE = 256;
+
+    enum Kind {
+        MESSAGE, ROOM_JOINED, ROOM_LEFT, USER_LEFT, STATUS_CHANGED, PRESENCE_REQUESTED
+    }
+
+    Kind kind = Kind.MESSAGE;
+    // Flipped, ready to be read by the broadcaster
+    ByteBuffer body = ByteBuffer.allocate(INITIAL_BODY_SIZE);
+    // The room a message goes to, or the one joined, left or asked about
+    String room;
+    // For room and presence events the connection concerned and its new status. For a message
+    // in the bulk lane, its sender.
+    ClientConnection client;
+    String status;
+    // For a join, the last message the client saw in the room
+    long lastSequence;
+    // Where a message came from, for flight recordings
+    long ingressId;
+    // When a traced message went into the ring, 0 if it is not traced
+    long enqueuedAtNanos;
+
+    static void copy(MessageEvent event, MessageView message, String room) {
+        event.kind = Kind.MESSAGE;
+        event.room = room;
+        ByteBuffer body = event.prepare(message.bodyLength());
+        message.copyBody(body);
+        body.flip();
+    }
+
+    private ByteBuffer prepare(int size) {
+        if (body.capacity() < size) {
+            body = ByteBuffer.allocate(size);
+        }
+        body.clear();
+        return body;
+    }
+
+    // Called once the body has been handled, an occasional huge message does not stay
+    // pinned in the ring
+    void trim() {
+        if (body.capacity() > Constants.READ_BUFFER_SIZE) {
+            body = ByteBuffer.allocate(INITIAL_BODY_SIZE);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package server;
+
+import protocol.EncodedFrame;
+import utils.Constants;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+// Append-only log of every broadcast frame in memory-mapped segment files. The broadcaster
+// hands frames over through a ring, this class's own thread writes them, so disk never sits on
+// the broadcast path. Segments are named after their first sequence number, which lets
+// recovery scan only the newest one no matter how much history is kept.
+//
+// Record layout: int32 frame length | int64 sequence | int32 CRC32 of the frame | frame bytes.
+// Mapped files start zero-filled, a zero length marks the end of the written data.
+public final class MessageJournal implements Runnable {
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long STOP_TIMEOUT_MILLIS = 2000;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final int syncEvery;
+    private final long syncNanos;
+    private final RingBuffer<FrameEvent> ring;
+    private final RingBuffer.EventHandler<FrameEvent> appendHandler;
+    private final List<Path> segments;
+    private final CRC32 crc;
+    // Created on start, so the journal is fully built before it runs
+    private Thread thread;
+    private volatile boolean running;
+    private MappedByteBuffer segment;
+    private long lastSequence;
+    private int unsynced;
+    private long lastSyncNanos;
+
+    public MessageJournal(Path directory, int ringSize, WaitStrategy waitStrategy) {
+        this.directory = directory;
+        // Every frame has to fit into a single segment
+        this.segmentSize = Math.max(Constants.JOURNAL_SEGMENT_SIZE,
+                RECORD_HEADER_SIZE + 4 + Constants.MAX_FRAME_SIZE);
+        this.maxSegments = Math.max(1, Constants.JOURNAL_MAX_SEGMENTS);
+        this.syncEvery = Math.max(1, Constants.JOURNAL_SYNC_EVERY);
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(Constants.JOURNAL_SYNC_MILLIS);
+        this.ring = new RingBuffer<>(ringSize, FrameEvent::new, waitStrategy);
+        this.appendHandler = this::append;
+        this.segments = new ArrayList<>();
+        this.crc = new CRC32();
+    }
+
+    public static MessageJournal fromConstants() {
+        return new MessageJournal(Paths.get(Constants.JOURNAL_DIR), Constants.MESSAGE_RING_SIZE,
+                new WaitStrategy(WaitStrategy.Type.valueOf(Constants.MESSAGE_RING_WAIT_STRATEGY.toUpperCase())));
+    }
+
+    // Finds the end of the newest segment and returns the last sequence written, 0 for a new
+    // journal. Every record found in that segment is passed to the visitor on the way.
+    public long open(ObjLongConsumer<ByteBuffer> visitor) throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments);
+
+        if (segments.isEmpty()) {
+            lastSequence = 0;
+            mapSegment(1);
+        } else {
+            Path tail = segments.get(segments.size() - 1);
+            segment = map(tail);
+            lastSequence = firstSequence(tail) - 1;
+            recoverTail(visitor);
+        }
+        lastSyncNanos = System.nanoTime();
+        return lastSequence;
+    }
+
+    // Walks the records of the tail segment, stopping at the first one that is missing, torn or
+    // out of order. Anything after it is cleared so new records start from a clean position.
+    private void recoverTail(ObjLongConsumer<ByteBuffer> visitor) {
+        while (segment.remaining() >= RECORD_HEADER_SIZE) {
+            int start = segment.position();
+            int length = segment.getInt(start);
+            if (length <= 0 || length > segment.capacity() - start - RECORD_HEADER_SIZE) {
+                break;
+            }
+            long sequence = segment.getLong(start + 4);
+            if (sequence != lastSequence + 1 || segment.getInt(start + 12) != checksum(start + RECORD_HEADER_SIZE, length)) {
+                break;
+            }
+            lastSequence = sequence;
+            visitor.accept(segment.slice(start + RECORD_HEADER_SIZE, length), sequence);
+            segment.position(start + RECORD_HEADER_SIZE + length);
+        }
+
+        int end = segment.position();
+        for (int i = end; i < Math.min(end + RECORD_HEADER_SIZE, segment.capacity()); i++) {
+            segment.put(i, (byte) 0);
+        }
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "message-journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Waits a little for queued records and the final sync
+    public void stop() {
+        running = false;
+        ring.getWaitStrategy().signal();
+        try {
+            thread.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Takes over the caller's reference to the frame
+    public void append(long sequence, EncodedFrame frame) {
+        long slot = ring.next();
+        FrameEvent event = ring.get(slot);
+        event.frame = frame;
+        event.sequence = sequence;
+        ring.publish(slot);
+    }
+
+    @Override
+    public void run() {
+        WaitStrategy waitStrategy = ring.getWaitStrategy();
+        BooleanSupplier hasWork = ring::hasPublished;
+        int idleRounds = 0;
+        // Whatever is already in the ring still gets written on shutdown
+        while (running || ring.hasPublished()) {
+            if (ring.drain(appendHandler) > 0) {
+                idleRounds = 0;
+            } else {
+                if (System.nanoTime() - lastSyncNanos >= syncNanos) {
+                    sync();
+                }
+                waitStrategy.idle(idleRounds++, hasWork);
+            }
+        }
+        sync();
+    }
+
+    private void append(FrameEvent event, long ringSequence, boolean endOfBatch) {
+        EncodedFrame frame = event.frame;
+        event.frame = null;
+        try {
+            int length = frame.length();
+            if (segment.remaining() < RECORD_HEADER_SIZE + length) {
+                roll(event.sequence);
+            }
+
+            // Frame first and length last, a record is only visible once it is complete
+            int start = segment.position();
+            segment.position(start + RECORD_HEADER_SIZE);
+            frame.copyTo(segment);
+            segment.putLong(start + 4, event.sequence);
+            segment.putInt(start + 12, checksum(start + RECORD_HEADER_SIZE, length));
+            segment.putInt(start, length);
+            lastSequence = event.sequence;
+
+            if (++unsynced >= syncEvery || System.nanoTime() - lastSyncNanos >= syncNanos) {
+                sync();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("❌ Could not write to message journal: " + e.getMessage());
+        } finally {
+            frame.release();
+        }
+    }
+
+    private int checksum(int offset, int length) {
+        int position = segment.position();
+        int limit = segment.limit();
+        segment.limit(offset + length).position(offset);
+        crc.reset();
+        crc.update(segment);
+        segment.limit(limit).position(position);
+        return (int) crc.getValue();
+    }
+
+    private void sync() {
+        if (unsynced == 0) {
+            return;
+        }
+        segment.force();
+        unsynced = 0;
+        lastSyncNanos = System.nanoTime();
+    }
+
+    private void roll(long nextSequence) throws IOException {
+        sync();
+        mapSegment(nextSequence);
+
+        // Retention: the oldest segments go once there are too many
+        while (segments.size() > maxSegments) {
+            Files.deleteIfExists(segments.remove(0));
+        }
+    }
+
+    private void mapSegment(long firstSequence) throws IOException {
+        Path file = directory.resolve(String.format("%020d%s", firstSequence, SEGMENT_SUFFIX));
+        segment = map(file);
+        segments.add(file);
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, channel.size()));
+        }
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
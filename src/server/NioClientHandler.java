@@ -0,0 +1,236 @@
+package server;
+
+import protocol.BufferPool;
+import protocol.EncodedFrame;
+import protocol.FrameCodec;
+import protocol.Handshake;
+import utils.Constants;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Connection driven by an EventLoop: reads and writes never block the calling thread
+public class NioClientHandler extends ClientConnection {
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final AtomicBoolean writeScheduled;
+    private final Runnable writeTask;
+    private ByteBuffer readBuffer;
+    // Bytes being written: a pooled buffer queued frames were copied into, or a view of one
+    // frame too large for it. Null while there is nothing to write.
+    private ByteBuffer writeBuffer;
+    // Set when writeBuffer is a view of this frame
+    private EncodedFrame largeFrame;
+    // Taken from the queue but did not fit in the last batch
+    private EncodedFrame nextFrame;
+    private SelectionKey key;
+    private boolean preambleChecked;
+    private boolean outputShutdown;
+    // Running while the socket buffer is full. Ended by the event loop, or by whoever closes a
+    // connection that never unblocked.
+    private volatile FlightEvents.WriteBlocked writeBlocked;
+
+    public NioClientHandler(SocketChannel channel, EventLoop eventLoop, ChatServer server) {
+        super(server);
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.writeScheduled = new AtomicBoolean(false);
+        this.writeTask = this::runWriteTask;
+        this.readBuffer = ByteBuffer.allocate(Constants.READ_BUFFER_SIZE);
+    }
+
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    void handleRead() {
+        try {
+            if (channel.read(readBuffer) == -1) {
+                disconnect();
+                return;
+            }
+            if (outputShutdown) {
+                // Rejected, just waiting for the client to hang up
+                readBuffer.clear();
+                return;
+            }
+
+            readBuffer.flip();
+            if (!preambleChecked) {
+                if (readBuffer.remaining() < Handshake.PREAMBLE_SIZE) {
+                    readBuffer.compact();
+                    return;
+                }
+                preambleChecked = true;
+                if (!acceptPreamble(readBuffer)) {
+                    // Nothing after a bad preamble is read. The notice fits the empty socket
+                    // buffer, so it goes out before the connection is closed.
+                    readBuffer.clear();
+                    handleWrite();
+                    disconnect();
+                    return;
+                }
+            }
+
+            while (!isClosed() && readBuffer.remaining() >= FrameCodec.HEADER_SIZE) {
+                int length = readBuffer.getInt(readBuffer.position());
+                FrameCodec.checkLength(length);
+                if (readBuffer.remaining() < FrameCodec.HEADER_SIZE + length) {
+                    break;
+                }
+
+                // Hand the frame over in place instead of slicing a new buffer for it
+                int frameStart = readBuffer.position() + FrameCodec.HEADER_SIZE;
+                int frameEnd = frameStart + length;
+                int limit = readBuffer.limit();
+                readBuffer.limit(frameEnd).position(frameStart);
+                onFrame(readBuffer);
+                readBuffer.limit(limit).position(frameEnd);
+            }
+            readBuffer.compact();
+            resizeReadBuffer();
+
+        } catch (IOException e) {
+            System.out.println("Client handler error for " + describe());
+            disconnect();
+        }
+    }
+
+    // Grow the buffer when a partially received frame will not fit, and go back to the default
+    // size once the large frames are through so they do not stay pinned for the whole session
+    private void resizeReadBuffer() {
+        int needed = Constants.READ_BUFFER_SIZE;
+        if (readBuffer.position() >= FrameCodec.HEADER_SIZE) {
+            needed = Math.max(needed, FrameCodec.HEADER_SIZE + readBuffer.getInt(0));
+        }
+        boolean grow = needed > readBuffer.capacity();
+        boolean shrink = needed < readBuffer.capacity() && readBuffer.position() <= needed;
+        if (grow || shrink) {
+            ByteBuffer resized = ByteBuffer.allocate(needed);
+            readBuffer.flip();
+            resized.put(readBuffer);
+            readBuffer = resized;
+        }
+    }
+
+    // Waiting for room in the ring would stop reads and writes for every connection on this
+    // loop, the writes that let the broadcaster catch up included
+    @Override
+    protected long claim(RingBuffer<MessageEvent> lane) {
+        return lane.tryNext();
+    }
+
+    @Override
+    protected void onFrameQueued() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(writeTask);
+        }
+    }
+
+    // Like a selected key, a failing write closes this connection and leaves the loop running
+    private void runWriteTask() {
+        try {
+            handleWrite();
+        } catch (RuntimeException e) {
+            System.out.println("❌ Error writing to " + describe() + ", closing it: " + e);
+            disconnect();
+        }
+    }
+
+    void handleWrite() {
+        writeScheduled.set(false);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+
+        try {
+            while (writeBuffer != null || fillWriteBuffer()) {
+                // One syscall for everything queued instead of one per frame
+                channel.write(writeBuffer);
+                if (writeBuffer.hasRemaining()) {
+                    // Socket buffer is full, wait for OP_WRITE
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    if (writeBlocked == null) {
+                        writeBlocked = new FlightEvents.WriteBlocked();
+                        writeBlocked.begin();
+                    }
+                    return;
+                }
+                if (writeBlocked != null) {
+                    FlightEvents.writeBlocked(writeBlocked, this);
+                    writeBlocked = null;
+                }
+                releaseWriteBuffer();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            if (closing && !outputShutdown) {
+                outputShutdown = true;
+                channel.shutdownOutput();
+            }
+
+        } catch (IOException | CancelledKeyException e) {
+            System.out.println("Error sending message to " + describe());
+            disconnect();
+        }
+    }
+
+    // Copies queued frames into a pooled buffer up to the coalescing limit, false if there was
+    // nothing to write
+    private boolean fillWriteBuffer() {
+        EncodedFrame frame = nextFrame != null ? nextFrame : onFrameSent(outbound.poll());
+        nextFrame = null;
+        if (frame == null) {
+            return false;
+        }
+        if (frame.length() > Constants.WRITE_COALESCE_MAX_BYTES) {
+            // Too big to batch, written straight from the shared bytes
+            largeFrame = frame;
+            writeBuffer = frame.asBuffer();
+            return true;
+        }
+
+        ByteBuffer batch = BufferPool.SHARED.acquire(Constants.WRITE_COALESCE_MAX_BYTES);
+        do {
+            if (frame.length() > batch.remaining()) {
+                nextFrame = frame;
+                break;
+            }
+            frame.copyTo(batch);
+            frame.release();
+        } while ((frame = onFrameSent(outbound.poll())) != null);
+        writeBuffer = batch.flip();
+        return true;
+    }
+
+    @Override
+    protected long getBufferBytes() {
+        // Read from other threads, close enough for a metric
+        ByteBuffer pending = writeBuffer;
+        return readBuffer.capacity() + (pending != null && largeFrame == null ? pending.capacity() : 0);
+    }
+
+    private void releaseWriteBuffer() {
+        if (largeFrame != null) {
+            largeFrame.release();
+            largeFrame = null;
+        } else {
+            BufferPool.SHARED.release(writeBuffer);
+        }
+        writeBuffer = null;
+    }
+
+    @Override
+    protected void closeTransport() throws IOException {
+        FlightEvents.WriteBlocked blocked = writeBlocked;
+        writeBlocked = null;
+        if (blocked != null) {
+            FlightEvents.writeBlocked(blocked, this);
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,336 @@
+package server;
+
+import protocol.CoalescingWriter;
+import protocol.EncodedFrame;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded queue of frames waiting to be written to one client, one FIFO per Lane. The writer
+// takes from the lanes by weight: each lane may send its weight in frames per round while
+// others are waiting, so a presence storm in the bulk lane delays a chat line by at most one
+// frame. The capacity covers all lanes together.
+public class OutboundQueue implements CoalescingWriter.FrameSource {
+    private static final int INITIAL_LANE_SIZE = 16;
+
+    // Grows up to the queue's capacity, so idle connections stay small
+    private static final class LaneQueue {
+        final int weight;
+        EncodedFrame[] frames = new EncodedFrame[INITIAL_LANE_SIZE];
+        long[] enqueuedAt = new long[INITIAL_LANE_SIZE];
+        int head;
+        int count;
+        // Frames this lane may still send in the current round
+        int credits;
+
+        LaneQueue(int weight) {
+            this.weight = weight;
+            this.credits = weight;
+        }
+
+        void addLast(EncodedFrame frame, long now) {
+            ensureRoom();
+            int tail = (head + count) % frames.length;
+            frames[tail] = frame;
+            enqueuedAt[tail] = now;
+            count++;
+        }
+
+        void addFirst(EncodedFrame frame, long now) {
+            ensureRoom();
+            head = (head - 1 + frames.length) % frames.length;
+            frames[head] = frame;
+            enqueuedAt[head] = now;
+            count++;
+        }
+
+        EncodedFrame removeFirst() {
+            EncodedFrame frame = frames[head];
+            frames[head] = null;
+            head = (head + 1) % frames.length;
+            count--;
+            return frame;
+        }
+
+        private void ensureRoom() {
+            if (count < frames.length) {
+                return;
+            }
+            EncodedFrame[] grownFrames = new EncodedFrame[frames.length * 2];
+            long[] grownTimes = new long[grownFrames.length];
+            for (int i = 0; i < count; i++) {
+                grownFrames[i] = frames[(head + i) % frames.length];
+                grownTimes[i] = enqueuedAt[(head + i) % frames.length];
+            }
+            frames = grownFrames;
+            enqueuedAt = grownTimes;
+            head = 0;
+        }
+    }
+
+    private final LaneQueue[] lanes;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutNanos;
+    private final ReentrantLock lock;
+    private final Condition notFull;
+    // The writer while it waits for a frame. There is only ever one, so it parks itself instead
+    // of waiting on a Condition, which would allocate a node every time the queue runs empty.
+    private Thread waiter;
+    private int count;
+    private long pendingBytes;
+    private long dropped;
+    private boolean closed;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis) {
+        this.lanes = new LaneQueue[Lane.all().length];
+        for (Lane lane : Lane.all()) {
+            lanes[lane.ordinal()] = new LaneQueue(lane.weight);
+        }
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        this.lock = new ReentrantLock();
+        this.notFull = lock.newCondition();
+    }
+
+    // Returns false if the frame could not be queued and the client should be dropped
+    public boolean offer(EncodedFrame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (count == capacity) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        dropOldest().release();
+                        dropped++;
+                        break;
+                    case BLOCK:
+                        if (!awaitSpace()) {
+                            return false;
+                        }
+                        break;
+                    default:
+                        return false;
+                }
+            }
+
+            lanes[Lane.of(frame).ordinal()].addLast(frame, System.nanoTime());
+            added(frame);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Puts the frame in front of everything in the control lane, never waits or evicts
+    public boolean offerFirst(EncodedFrame frame) {
+        lock.lock();
+        try {
+            if (closed || count == capacity) {
+                return false;
+            }
+
+            lanes[Lane.CONTROL.ordinal()].addFirst(frame, System.nanoTime());
+            added(frame);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void added(EncodedFrame frame) {
+        count++;
+        pendingBytes += frame.length();
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    // The oldest frame of the lowest priority lane that has any
+    private EncodedFrame dropOldest() {
+        for (int i = lanes.length - 1; i >= 0; i--) {
+            if (lanes[i].count > 0) {
+                return removed(lanes[i].removeFirst());
+            }
+        }
+        throw new IllegalStateException("Queue is empty");
+    }
+
+    private boolean awaitSpace() {
+        long remaining = blockTimeoutNanos;
+        try {
+            while (count == capacity && !closed) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !closed;
+    }
+
+    // Blocks until a frame is available, returns null once closed and empty
+    @Override
+    public EncodedFrame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (count == 0) {
+                if (closed) {
+                    return null;
+                }
+                awaitFrame(0);
+            }
+            return removeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public EncodedFrame poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : removeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public EncodedFrame poll(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + timeoutNanos;
+            long remaining = timeoutNanos;
+            while (count == 0) {
+                if (closed || remaining <= 0) {
+                    return null;
+                }
+                awaitFrame(remaining);
+                remaining = deadline - System.nanoTime();
+            }
+            return removeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called and returns with the lock held, 0 waits until woken. May return early, callers
+    // check again.
+    private void awaitFrame(long timeoutNanos) throws InterruptedException {
+        waiter = Thread.currentThread();
+        lock.unlock();
+        try {
+            if (timeoutNanos > 0) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            } else {
+                LockSupport.park(this);
+            }
+        } finally {
+            lock.lock();
+            waiter = null;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    // Weighted round robin: the first lane in priority order that has frames and credits left
+    // goes next. Once none has both, every lane gets its weight in credits again.
+    private EncodedFrame removeHead() {
+        while (true) {
+            for (LaneQueue lane : lanes) {
+                if (lane.count > 0 && lane.credits > 0) {
+                    lane.credits--;
+                    return removed(lane.removeFirst());
+                }
+            }
+            for (LaneQueue lane : lanes) {
+                lane.credits = lane.weight;
+            }
+        }
+    }
+
+    private EncodedFrame removed(EncodedFrame frame) {
+        count--;
+        pendingBytes -= frame.length();
+        notFull.signal();
+        return frame;
+    }
+
+    // Rejects further frames, frames already queued can still be taken
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Releases whatever is still queued, for connections that are gone
+    public void clear() {
+        lock.lock();
+        try {
+            while (count > 0) {
+                removeHead().release();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getPendingBytes() {
+        lock.lock();
+        try {
+            return pendingBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // How long the oldest queued frame in any lane has been waiting, 0 when empty
+    public long getOldestWaitNanos() {
+        lock.lock();
+        try {
+            long oldest = 0;
+            long now = System.nanoTime();
+            for (LaneQueue lane : lanes) {
+                if (lane.count > 0) {
+                    oldest = Math.max(oldest, now - lane.enqueuedAt[lane.head]);
+                }
+            }
+            return oldest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
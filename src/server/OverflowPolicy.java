@@ -0,0 +1,11 @@
+package server;
+
+// What a connection does when its outbound queue is full
+public enum OverflowPolicy {
+    // Discard the oldest queued frame to make room
+    DROP_OLDEST,
+    // Disconnect the client
+    DISCONNECT,
+    // Wait up to the configured timeout for room, then disconnect
+    BLOCK
+}
@@ -0,0 +1,207 @@
+package server;
+
+import model.User;
+import protocol.EncodedFrame;
+import protocol.FrameCodec;
+import protocol.PresenceChange;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Who is in one room, owned by the broadcaster thread. Changes are collected for a short window and
+// go out as one delta per window, so a reconnect storm costs one broadcast instead of one per
+// client. A user who joins and leaves within the window is never announced, repeated status
+// changes only send the last one. Clients that join or lost track share one snapshot per window.
+// Changes and snapshots that do not fit one frame are split, a delta per frame with versions
+// counting up and a snapshot that says when more of it follows.
+public class Presence {
+    private static final class Change {
+        byte change;
+        // The entry in users, so later status changes show up here too
+        final User user;
+
+        Change(byte change, User user) {
+            this.change = change;
+            this.user = user;
+        }
+    }
+
+    // What one window amounts to
+    public static final class Update {
+        // Empty if nothing changed, in version order
+        public final List<EncodedFrame> deltas;
+        // Empty if nobody is waiting for one, in the order to send them
+        public final List<EncodedFrame> snapshot;
+        public final List<ClientConnection> waiting;
+        public final List<String> joined;
+        public final List<String> left;
+
+        Update(List<EncodedFrame> deltas, List<EncodedFrame> snapshot, List<ClientConnection> waiting,
+                List<String> joined, List<String> left) {
+            this.deltas = deltas;
+            this.snapshot = snapshot;
+            this.waiting = waiting;
+            this.joined = joined;
+            this.left = left;
+        }
+    }
+
+    private final String room;
+    private final long windowNanos;
+    // Keyed by connection, the same name may be online twice
+    private final Map<ClientConnection, User> users;
+    // One entry per connection that changed since the last update, in order of first change
+    private final Map<ClientConnection, Change> pending;
+    private final List<ClientConnection> waiting;
+    private long version;
+    private long windowStartNanos;
+    // Written by the broadcaster only
+    private volatile long changes;
+    private volatile long updates;
+
+    public Presence(String room, long windowMillis) {
+        this.room = room;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+        this.users = new LinkedHashMap<>();
+        this.pending = new LinkedHashMap<>();
+        this.waiting = new ArrayList<>();
+    }
+
+    // The client also gets a snapshot with the next update
+    public void join(ClientConnection client) {
+        User user = new User(client.getUser().getUsername());
+        user.setStatus(client.getUser().getStatus());
+        users.put(client, user);
+        record(client, new Change(PresenceChange.JOINED, user));
+        waiting.add(client);
+    }
+
+    // False if the client was not in the room
+    public boolean leave(ClientConnection client) {
+        User user = users.remove(client);
+        if (user == null) {
+            return false;
+        }
+        waiting.remove(client);
+        Change change = pending.get(client);
+        if (change != null && change.change == PresenceChange.JOINED) {
+            // Never announced, nobody needs to hear about it
+            pending.remove(client);
+            changes++;
+        } else if (change != null) {
+            change.change = PresenceChange.LEFT;
+            changes++;
+        } else {
+            record(client, new Change(PresenceChange.LEFT, user));
+        }
+        return true;
+    }
+
+    public void changeStatus(ClientConnection client, String status) {
+        User user = users.get(client);
+        if (user == null || user.getStatus().equals(status)) {
+            return;
+        }
+        user.setStatus(status);
+        if (pending.containsKey(client)) {
+            // A pending join or status change already carries the new status
+            changes++;
+        } else {
+            record(client, new Change(PresenceChange.STATUS_CHANGED, user));
+        }
+    }
+
+    public void requestSnapshot(ClientConnection client) {
+        startWindow();
+        waiting.add(client);
+    }
+
+    private void record(ClientConnection client, Change change) {
+        startWindow();
+        pending.put(client, change);
+        changes++;
+    }
+
+    private void startWindow() {
+        if (pending.isEmpty() && waiting.isEmpty()) {
+            windowStartNanos = System.nanoTime();
+        }
+    }
+
+    // Something is waiting for the window to end
+    public boolean isPending() {
+        return !pending.isEmpty() || !waiting.isEmpty();
+    }
+
+    public boolean isDue() {
+        return (!pending.isEmpty() || !waiting.isEmpty())
+                && System.nanoTime() - windowStartNanos >= windowNanos;
+    }
+
+    // Ends the window. The snapshot has the same version as the last delta, so clients that get
+    // both skip the deltas.
+    public Update flush() {
+        List<EncodedFrame> deltas = Collections.emptyList();
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        if (!pending.isEmpty()) {
+            byte[] kinds = new byte[pending.size()];
+            List<User> changed = new ArrayList<>(pending.size());
+            Iterator<Change> iterator = pending.values().iterator();
+            for (int i = 0; i < kinds.length; i++) {
+                Change change = iterator.next();
+                kinds[i] = change.change;
+                changed.add(change.user);
+                if (change.change == PresenceChange.JOINED) {
+                    joined.add(change.user.getUsername());
+                } else if (change.change == PresenceChange.LEFT) {
+                    left.add(change.user.getUsername());
+                }
+            }
+            deltas = new ArrayList<>(1);
+            for (int start = 0, count; start < kinds.length; start += count) {
+                count = FrameCodec.presenceBatchSize(room, changed, start);
+                deltas.add(new EncodedFrame(FrameCodec.encodePresenceDelta(room, ++version,
+                    Arrays.copyOfRange(kinds, start, start + count), changed.subList(start, start + count))));
+            }
+            pending.clear();
+            updates += deltas.size();
+        }
+
+        List<EncodedFrame> snapshot = Collections.emptyList();
+        List<ClientConnection> recipients = new ArrayList<>(waiting);
+        if (!recipients.isEmpty()) {
+            List<User> members = new ArrayList<>(users.values());
+            snapshot = new ArrayList<>(1);
+            int start = 0;
+            do {
+                int count = FrameCodec.presenceBatchSize(room, members, start);
+                boolean more = start + count < members.size();
+                snapshot.add(new EncodedFrame(FrameCodec.encodePresenceSnapshot(room, version,
+                    members.subList(start, start + count), more)));
+                start += count;
+            } while (start < members.size());
+            waiting.clear();
+        }
+        return new Update(deltas, snapshot, recipients, joined, left);
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    // Joins, leaves and status changes received
+    public long getChanges() {
+        return changes;
+    }
+
+    // Deltas broadcast, the difference to getChanges() is what coalescing saved
+    public long getUpdates() {
+        return updates;
+    }
+}
@@ -0,0 +1,67 @@
+package server;
+
+import utils.Constants;
+
+// Per-connection limits on what clients send, and the broadcaster backlog above which the
+// server sheds low-priority traffic. Start out from the system properties and can be changed
+// while the server runs; connections pick up new values with their next message.
+public class RateLimits implements RateLimitsMBean {
+    private volatile int messagesPerSecond = Constants.RATE_MESSAGES_PER_SECOND;
+    private volatile int messageBurst = Constants.RATE_MESSAGE_BURST;
+    private volatile int bytesPerSecond = Constants.RATE_BYTES_PER_SECOND;
+    private volatile int byteBurst = Constants.RATE_BYTE_BURST;
+    private volatile int shedWatermarkPercent = Constants.SHED_WATERMARK_PERCENT;
+
+    @Override
+    public int getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    // 0 turns the limit off
+    @Override
+    public void setMessagesPerSecond(int messagesPerSecond) {
+        this.messagesPerSecond = messagesPerSecond;
+    }
+
+    @Override
+    public int getMessageBurst() {
+        return messageBurst;
+    }
+
+    @Override
+    public void setMessageBurst(int messageBurst) {
+        this.messageBurst = messageBurst;
+    }
+
+    @Override
+    public int getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    // 0 turns the limit off
+    @Override
+    public void setBytesPerSecond(int bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public int getByteBurst() {
+        return byteBurst;
+    }
+
+    @Override
+    public void setByteBurst(int byteBurst) {
+        this.byteBurst = byteBurst;
+    }
+
+    @Override
+    public int getShedWatermarkPercent() {
+        return shedWatermarkPercent;
+    }
+
+    // Percent of the broadcaster's ring capacity, 100 or more never sheds
+    @Override
+    public void setShedWatermarkPercent(int shedWatermarkPercent) {
+        this.shedWatermarkPercent = shedWatermarkPercent;
+    }
+}
@@ -0,0 +1,24 @@
+package server;
+
+// RateLimits over JMX, so the limits can be tuned on a running server
+public interface RateLimitsMBean {
+    int getMessagesPerSecond();
+
+    void setMessagesPerSecond(int messagesPerSecond);
+
+    int getMessageBurst();
+
+    void setMessageBurst(int messageBurst);
+
+    int getBytesPerSecond();
+
+    void setBytesPerSecond(int bytesPerSecond);
+
+    int getByteBurst();
+
+    void setByteBurst(int byteBurst);
+
+    int getShedWatermarkPercent();
+
+    void setShedWatermarkPercent(int shedWatermarkPercent);
+}
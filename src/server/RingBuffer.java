@@ -0,0 +1,129 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+// Preallocated multi-producer / single-consumer ring, Disruptor style. Producers claim a
+// sequence, fill the entry in place and publish it; the consumer drains every published
+// entry in one batch.
+public class RingBuffer<E> {
+    public interface EventHandler<E> {
+        void onEvent(E event, long sequence, boolean endOfBatch);
+    }
+
+    private final Object[] entries;
+    private final int mask;
+    private final int indexShift;
+    private final WaitStrategy waitStrategy;
+    // Last sequence claimed by a producer
+    private final AtomicLong claimed;
+    // Last sequence fully processed by the consumer, producers may not wrap past it
+    private final AtomicLong consumed;
+    // Per slot, the lap number of the sequence last published into it
+    private final AtomicIntegerArray published;
+
+    public RingBuffer(int size, Supplier<E> factory, WaitStrategy waitStrategy) {
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.entries = new Object[capacity];
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = factory.get();
+        }
+        this.mask = capacity - 1;
+        this.indexShift = Integer.numberOfTrailingZeros(capacity);
+        this.waitStrategy = waitStrategy;
+        this.claimed = new AtomicLong(-1);
+        this.consumed = new AtomicLong(-1);
+        this.published = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    // Claims the next slot, waiting while the ring is full
+    public long next() {
+        long sequence = claimed.incrementAndGet();
+        long wrapPoint = sequence - entries.length;
+        while (wrapPoint > consumed.get()) {
+            waitStrategy.backOff();
+        }
+        return sequence;
+    }
+
+    // Claims the next slot, or returns -1 at once when the ring is full
+    public long tryNext() {
+        long current;
+        do {
+            current = claimed.get();
+            if (current + 1 - entries.length > consumed.get()) {
+                return -1;
+            }
+        } while (!claimed.compareAndSet(current, current + 1));
+        return current + 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) entries[(int) sequence & mask];
+    }
+
+    public void publish(long sequence) {
+        published.set((int) sequence & mask, (int) (sequence >>> indexShift));
+        waitStrategy.signal();
+    }
+
+    // Claim, fill and publish in one call; pass a non-capturing translator to stay allocation-free
+    public <A> void publishEvent(BiConsumer<E, A> translator, A argument) {
+        long sequence = next();
+        try {
+            translator.accept(get(sequence), argument);
+        } finally {
+            publish(sequence);
+        }
+    }
+
+    private boolean isPublished(long sequence) {
+        return published.get((int) sequence & mask) == (int) (sequence >>> indexShift);
+    }
+
+    public boolean hasPublished() {
+        return isPublished(consumed.get() + 1);
+    }
+
+    // Consumer only. Processes everything published since the last call, returns the batch size.
+    public int drain(EventHandler<E> handler) {
+        return drain(handler, entries.length);
+    }
+
+    // Same, but stops after maxBatch events so the consumer can turn to other work in between
+    public int drain(EventHandler<E> handler, int maxBatch) {
+        long first = consumed.get() + 1;
+        long last = first - 1;
+        while (last - first + 1 < Math.min(maxBatch, entries.length) && isPublished(last + 1)) {
+            last++;
+        }
+        if (last < first) {
+            return 0;
+        }
+
+        for (long sequence = first; sequence <= last; sequence++) {
+            handler.onEvent(get(sequence), sequence, sequence == last);
+        }
+        consumed.lazySet(last);
+        return (int) (last - first + 1);
+    }
+
+    // Claimed but not yet consumed
+    public long depth() {
+        return Math.max(0, claimed.get() - consumed.get());
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+}
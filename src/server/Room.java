@@ -0,0 +1,57 @@
+package server;
+
+import utils.Constants;
+import java.util.ArrayList;
+import java.util.List;
+
+// A named room and the routing index for it: its subscribers, split by broadcast shard. A
+// frame for the room is only published to the shards that have members in it, and each of
+// those only walks the members it has, so fan-out costs what the room costs rather than what
+// the whole server does. Membership changes are made by the broadcaster thread.
+public class Room {
+    final String name;
+    final Presence presence;
+    private final List<StripedRegistry<Subscription>> subscribers;
+    private volatile int size;
+    // Owned by the broadcaster: waiting in its queue of presence windows
+    boolean presenceQueued;
+
+    public Room(String name, int shards) {
+        this.name = name;
+        this.presence = new Presence(name, Constants.PRESENCE_BATCH_MILLIS);
+        this.subscribers = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            // Only the broadcaster changes it, one stripe is enough
+            subscribers.add(new StripedRegistry<>(1));
+        }
+    }
+
+    void add(Subscription subscription) {
+        subscription.registration = subscribers.get(subscription.client.shard.index).add(subscription);
+        size++;
+    }
+
+    void remove(Subscription subscription) {
+        if (subscribers.get(subscription.client.shard.index).remove(subscription.registration)) {
+            size--;
+        }
+    }
+
+    // Read by the shard thread on every delivery
+    StripedRegistry<Subscription> subscribers(int shard) {
+        return subscribers.get(shard);
+    }
+
+    boolean hasSubscribers(int shard) {
+        return !subscribers.get(shard).isEmpty();
+    }
+
+    // Members across all shards, readable from any thread
+    public int size() {
+        return size;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
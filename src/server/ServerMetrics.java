@@ -0,0 +1,373 @@
+package server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import utils.LatencyHistogram;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Counters, gauges and the fan-out latency histogram of one server. Recording is a LongAdder
+// increment, so reader threads, writers and shards never contend on a metric. Rates and
+// percentiles are worked out by sample(), which the monitor thread calls once per interval;
+// gauges are read when asked for.
+public class ServerMetrics implements ServerMetricsMBean {
+    private static final String[] TRACE_STAGE_NAMES = {"decode", "enqueue", "dequeue", "write"};
+
+    // A count with its rate over the last interval
+    static final class Meter {
+        private final LongAdder count = new LongAdder();
+        // Owned by the sampling thread
+        private long sampledCount;
+        private volatile double perSecond;
+
+        void increment() {
+            count.increment();
+        }
+
+        void add(long amount) {
+            count.add(amount);
+        }
+
+        long total() {
+            return count.sum();
+        }
+
+        private void sample(double seconds) {
+            long total = count.sum();
+            perSecond = seconds > 0 ? (total - sampledCount) / seconds : 0;
+            sampledCount = total;
+        }
+    }
+
+    // A latency histogram with its percentiles over the last interval, in nanoseconds
+    static final class Percentiles {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private volatile long p50;
+        private volatile long p90;
+        private volatile long p99;
+        private volatile long p999;
+        private volatile long max;
+        private volatile long count;
+
+        void record(long nanos) {
+            histogram.record(nanos);
+        }
+
+        private void sample() {
+            long[] counts = histogram.intervalCounts();
+            p50 = LatencyHistogram.percentile(counts, 50);
+            p90 = LatencyHistogram.percentile(counts, 90);
+            p99 = LatencyHistogram.percentile(counts, 99);
+            p999 = LatencyHistogram.percentile(counts, 99.9);
+            max = LatencyHistogram.max(counts);
+            count = LatencyHistogram.total(counts);
+        }
+
+        private String summary() {
+            return "n=" + count + " p50=" + p50 / 1000 + "us p90=" + p90 / 1000 + "us p99=" + p99 / 1000
+                + "us p99.9=" + p999 / 1000 + "us max=" + max / 1000 + "us";
+        }
+    }
+
+    // Chat messages accepted from clients, and every frame written to one
+    final Meter messagesIn = new Meter();
+    final Meter bytesIn = new Meter();
+    final Meter messagesOut = new Meter();
+    final Meter bytesOut = new Meter();
+    final Meter connects = new Meter();
+    final Meter disconnects = new Meter();
+    // Frames refused for going over a client's rate limit, and ones shed while overloaded
+    final Meter throttled = new Meter();
+    final Meter shed = new Meter();
+    final Meter presenceUpdates = new Meter();
+    // From publishing a room's frame to a shard until the shard queued it for all its members
+    final Percentiles fanOut = new Percentiles();
+    // Stages of messages that carry a trace header, each from the end of the one before: read
+    // until validated, until in the broadcaster's ring, until the broadcaster took it, until the
+    // writer of each recipient took it
+    final Percentiles traceDecode = new Percentiles();
+    final Percentiles traceEnqueue = new Percentiles();
+    final Percentiles traceDequeue = new Percentiles();
+    final Percentiles traceWrite = new Percentiles();
+    private final Meter[] meters = {messagesIn, bytesIn, messagesOut, bytesOut, connects, disconnects,
+        throttled, shed, presenceUpdates};
+    private final Percentiles[] traceStages = {traceDecode, traceEnqueue, traceDequeue, traceWrite};
+
+    private final RingBuffer<MessageEvent> controlRing;
+    private final RingBuffer<MessageEvent> messageRing;
+    private final RingBuffer<MessageEvent> bulkRing;
+    private final ConnectionRegistry clients;
+    private final List<ObjectName> registered;
+
+    // Owned by the sampling thread
+    private long sampledAtNanos;
+
+    public ServerMetrics(RingBuffer<MessageEvent> controlRing, RingBuffer<MessageEvent> messageRing,
+            RingBuffer<MessageEvent> bulkRing, ConnectionRegistry clients) {
+        this.controlRing = controlRing;
+        this.messageRing = messageRing;
+        this.bulkRing = bulkRing;
+        this.clients = clients;
+        this.registered = new ArrayList<>();
+        this.sampledAtNanos = System.nanoTime();
+    }
+
+    // Ends an interval: rates and percentiles from now on describe the one just ended
+    public void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - sampledAtNanos) / 1e9;
+        sampledAtNanos = now;
+        for (Meter meter : meters) {
+            meter.sample(seconds);
+        }
+
+        fanOut.sample();
+        for (Percentiles stage : traceStages) {
+            stage.sample();
+        }
+    }
+
+    // Replaces the file in one step, so readers never see half a report
+    public void writeTo(Path file) {
+        try {
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temporary, report().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("⚠️  Could not write metrics to " + file + ": " + e.getMessage());
+        }
+    }
+
+    public void register() {
+        register(this, "chat:type=ServerMetrics");
+    }
+
+    // Anything else worth managing over JMX, unregistered together with the metrics
+    public void register(Object mbean, String name) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            registered.add(objectName);
+        } catch (JMException e) {
+            System.out.println("⚠️  " + name + " not available over JMX: " + e.getMessage());
+        }
+    }
+
+    public void unregister() {
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                mbeans.unregisterMBean(name);
+            } catch (JMException e) {
+                // Already gone
+            }
+        }
+        registered.clear();
+    }
+
+    @Override
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        line(report, "messages.in.perSecond", String.format("%.1f", getMessagesInPerSecond()));
+        line(report, "messages.out.perSecond", String.format("%.1f", getMessagesOutPerSecond()));
+        line(report, "bytes.in.perSecond", String.format("%.0f", getBytesInPerSecond()));
+        line(report, "bytes.out.perSecond", String.format("%.0f", getBytesOutPerSecond()));
+        line(report, "messages.in", getMessagesIn());
+        line(report, "messages.out", getMessagesOut());
+        line(report, "bytes.in", getBytesIn());
+        line(report, "bytes.out", getBytesOut());
+        line(report, "queue.control.depth", getControlQueueDepth());
+        line(report, "queue.message.depth", getMessageQueueDepth());
+        line(report, "queue.bulk.depth", getBulkQueueDepth());
+        line(report, "fanOut.p50.micros", getFanOutP50Micros());
+        line(report, "fanOut.p90.micros", getFanOutP90Micros());
+        line(report, "fanOut.p99.micros", getFanOutP99Micros());
+        line(report, "fanOut.p999.micros", getFanOutP999Micros());
+        line(report, "fanOut.max.micros", getFanOutMaxMicros());
+        line(report, "connections", getConnections());
+        line(report, "connects.perSecond", String.format("%.1f", getConnectsPerSecond()));
+        line(report, "disconnects.perSecond", String.format("%.1f", getDisconnectsPerSecond()));
+        line(report, "connects", getConnects());
+        line(report, "disconnects", getDisconnects());
+        line(report, "throttled", getThrottled());
+        line(report, "shed", getShed());
+        line(report, "presence.updates", getPresenceUpdates());
+        for (int i = 0; i < traceStages.length; i++) {
+            line(report, "trace." + TRACE_STAGE_NAMES[i], traceStages[i].summary());
+        }
+        line(report, "sendQueue.max", getMaxSendQueueLength());
+        line(report, "sendQueue.total", getTotalSendQueueLength());
+        for (ClientConnection client : clients) {
+            line(report, "sendQueue." + client.describe(), client.getPendingMessages());
+        }
+        return report.toString();
+    }
+
+    private static void line(StringBuilder report, String name, Object value) {
+        report.append(name).append(' ').append(value).append('\n');
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesIn.perSecond;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOut.perSecond;
+    }
+
+    @Override
+    public double getBytesInPerSecond() {
+        return bytesIn.perSecond;
+    }
+
+    @Override
+    public double getBytesOutPerSecond() {
+        return bytesOut.perSecond;
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.total();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.total();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.total();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.total();
+    }
+
+    @Override
+    public long getControlQueueDepth() {
+        return controlRing.depth();
+    }
+
+    @Override
+    public long getMessageQueueDepth() {
+        return messageRing.depth();
+    }
+
+    @Override
+    public long getBulkQueueDepth() {
+        return bulkRing.depth();
+    }
+
+    @Override
+    public long getFanOutP50Micros() {
+        return fanOut.p50 / 1000;
+    }
+
+    @Override
+    public long getFanOutP90Micros() {
+        return fanOut.p90 / 1000;
+    }
+
+    @Override
+    public long getFanOutP99Micros() {
+        return fanOut.p99 / 1000;
+    }
+
+    @Override
+    public long getFanOutP999Micros() {
+        return fanOut.p999 / 1000;
+    }
+
+    @Override
+    public long getFanOutMaxMicros() {
+        return fanOut.max / 1000;
+    }
+
+    @Override
+    public int getConnections() {
+        return clients.size();
+    }
+
+    @Override
+    public double getConnectsPerSecond() {
+        return connects.perSecond;
+    }
+
+    @Override
+    public double getDisconnectsPerSecond() {
+        return disconnects.perSecond;
+    }
+
+    @Override
+    public long getConnects() {
+        return connects.total();
+    }
+
+    @Override
+    public long getDisconnects() {
+        return disconnects.total();
+    }
+
+    @Override
+    public int getMaxSendQueueLength() {
+        int max = 0;
+        for (ClientConnection client : clients) {
+            max = Math.max(max, client.getPendingMessages());
+        }
+        return max;
+    }
+
+    @Override
+    public long getTotalSendQueueLength() {
+        long total = 0;
+        for (ClientConnection client : clients) {
+            total += client.getPendingMessages();
+        }
+        return total;
+    }
+
+    @Override
+    public String[] getSendQueueLengths() {
+        List<String> lengths = new ArrayList<>();
+        for (ClientConnection client : clients) {
+            lengths.add(client.describe() + "=" + client.getPendingMessages());
+        }
+        return lengths.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getTraceStages() {
+        String[] stages = new String[traceStages.length];
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = TRACE_STAGE_NAMES[i] + " " + traceStages[i].summary();
+        }
+        return stages;
+    }
+
+    @Override
+    public long getThrottled() {
+        return throttled.total();
+    }
+
+    @Override
+    public long getShed() {
+        return shed.total();
+    }
+
+    @Override
+    public long getPresenceUpdates() {
+        return presenceUpdates.total();
+    }
+}
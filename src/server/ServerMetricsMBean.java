@@ -0,0 +1,66 @@
+package server;
+
+// What ServerMetrics shows over JMX. Rates and fan-out percentiles cover the last sampling
+// interval, totals count since the server started.
+public interface ServerMetricsMBean {
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    double getBytesInPerSecond();
+
+    double getBytesOutPerSecond();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getControlQueueDepth();
+
+    long getMessageQueueDepth();
+
+    long getBulkQueueDepth();
+
+    long getFanOutP50Micros();
+
+    long getFanOutP90Micros();
+
+    long getFanOutP99Micros();
+
+    long getFanOutP999Micros();
+
+    long getFanOutMaxMicros();
+
+    int getConnections();
+
+    double getConnectsPerSecond();
+
+    double getDisconnectsPerSecond();
+
+    long getConnects();
+
+    long getDisconnects();
+
+    int getMaxSendQueueLength();
+
+    long getTotalSendQueueLength();
+
+    // One "user=length" entry per connection
+    String[] getSendQueueLengths();
+
+    // Per-stage latency of traced messages, one "stage n=... p50=..." entry per stage
+    String[] getTraceStages();
+
+    long getThrottled();
+
+    long getShed();
+
+    long getPresenceUpdates();
+
+    // Everything above as text, the same as the metrics file
+    String report();
+}
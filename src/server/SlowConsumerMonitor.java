@@ -0,0 +1,53 @@
+package server;
+
+import protocol.EncodedFrame;
+import protocol.FrameCodec;
+import utils.Constants;
+import java.util.concurrent.TimeUnit;
+
+// Periodically checks every client's outbound backlog: warns clients that fall behind
+// and disconnects the ones that stay behind past the grace period
+public class SlowConsumerMonitor implements Runnable {
+    private final Iterable<ClientConnection> clients;
+    private final long graceNanos;
+
+    public SlowConsumerMonitor(Iterable<ClientConnection> clients) {
+        this.clients = clients;
+        this.graceNanos = TimeUnit.MILLISECONDS.toNanos(Constants.SLOW_CONSUMER_GRACE_MILLIS);
+    }
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        for (ClientConnection client : clients) {
+            if (client.getUser() == null || client.isClosed()) {
+                continue;
+            }
+
+            long lagMillis = client.getLagMillis();
+            long pendingBytes = client.getPendingBytes();
+            boolean lagging = lagMillis > Constants.SLOW_CONSUMER_LAG_MILLIS
+                    || pendingBytes > Constants.SLOW_CONSUMER_MAX_PENDING_BYTES;
+
+            if (!lagging) {
+                if (client.lagWarnedAtNanos != 0) {
+                    System.out.println("🐇 " + client.describe() + " caught up");
+                    client.lagWarnedAtNanos = 0;
+                }
+                continue;
+            }
+
+            String stats = client.getPendingMessages() + " messages / " + pendingBytes + " bytes pending, oldest "
+                    + lagMillis + " ms, " + client.getRetainedBytes() + " bytes retained";
+            if (client.lagWarnedAtNanos == 0) {
+                System.out.println("🐢 " + client.describe() + " is falling behind: " + stats);
+                client.lagWarnedAtNanos = now;
+                client.sendUrgentFrame(new EncodedFrame(FrameCodec.encodeWarning(
+                        "Your connection is falling behind, you will be disconnected if it does not catch up")));
+            } else if (now - client.lagWarnedAtNanos > graceNanos) {
+                System.out.println("🐢 Disconnecting slow client " + client.describe() + ": " + stats);
+                client.disconnect();
+            }
+        }
+    }
+}
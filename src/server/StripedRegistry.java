@@ -0,0 +1,201 @@
+package server;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+// A set of entries spread over independently locked stripes, each an array that is appended to
+// in place. Removing an entry leaves a tombstone, a stripe is only copied when it fills up or
+// when tombstones make up half of it, so adds and removes cost O(1) amortized instead of a copy
+// of everything like CopyOnWriteArrayList. Iteration takes no lock and is weakly consistent:
+// it sees every entry that was there when it started and not removed meanwhile, and never
+// sees an entry twice.
+public class StripedRegistry<T> implements Iterable<T> {
+    private static final int INITIAL_STRIPE_SIZE = 16;
+    // Below this many tombstones a stripe is never worth compacting
+    private static final int MIN_TOMBSTONES_TO_COMPACT = 16;
+
+    // What add() returns, needed to remove the entry again without searching for it
+    public static final class Handle<T> {
+        final T value;
+        final int stripe;
+        // Guarded by the stripe's lock
+        int slot;
+        boolean removed;
+
+        Handle(T value, int stripe) {
+            this.value = value;
+            this.stripe = stripe;
+        }
+
+        public T get() {
+            return value;
+        }
+    }
+
+    private static final class Stripe<T> {
+        final ReentrantLock lock = new ReentrantLock();
+        // Readers read end first and slots second, writers write them the other way round, so
+        // a reader never looks past what its array holds
+        volatile Handle<T>[] slots;
+        // Slots in use, tombstones included
+        volatile int end;
+        int tombstones;
+
+        Stripe() {
+            slots = newArray(INITIAL_STRIPE_SIZE);
+        }
+    }
+
+    private final Stripe<T>[] stripes;
+    private final AtomicInteger nextStripe;
+    private final AtomicInteger size;
+
+    public StripedRegistry(int stripeCount) {
+        this.stripes = newStripes(Math.max(1, stripeCount));
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe<>();
+        }
+        this.nextStripe = new AtomicInteger();
+        this.size = new AtomicInteger();
+    }
+
+    public Handle<T> add(T value) {
+        int index = stripes.length == 1 ? 0 : Math.floorMod(nextStripe.getAndIncrement(), stripes.length);
+        Stripe<T> stripe = stripes[index];
+        Handle<T> handle = new Handle<>(value, index);
+        stripe.lock.lock();
+        try {
+            Handle<T>[] slots = stripe.slots;
+            int end = stripe.end;
+            if (end == slots.length) {
+                // Full: start over in a new array, without the tombstones
+                slots = compact(stripe, Math.max(INITIAL_STRIPE_SIZE, (end - stripe.tombstones) * 2));
+                end = stripe.end;
+            }
+            handle.slot = end;
+            slots[end] = handle;
+            stripe.end = end + 1;
+        } finally {
+            stripe.lock.unlock();
+        }
+        size.incrementAndGet();
+        return handle;
+    }
+
+    // False if the entry was already removed
+    public boolean remove(Handle<T> handle) {
+        Stripe<T> stripe = stripes[handle.stripe];
+        stripe.lock.lock();
+        try {
+            if (handle.removed) {
+                return false;
+            }
+            handle.removed = true;
+            stripe.slots[handle.slot] = null;
+            stripe.tombstones++;
+            if (stripe.tombstones >= MIN_TOMBSTONES_TO_COMPACT && stripe.tombstones * 2 >= stripe.end) {
+                compact(stripe, Math.max(INITIAL_STRIPE_SIZE, stripe.end));
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        size.decrementAndGet();
+        return true;
+    }
+
+    // Copies the live entries into a new array, readers still walking the old one finish it
+    private static <T> Handle<T>[] compact(Stripe<T> stripe, int capacity) {
+        Handle<T>[] old = stripe.slots;
+        Handle<T>[] slots = newArray(capacity);
+        int live = 0;
+        for (int i = 0; i < stripe.end; i++) {
+            Handle<T> handle = old[i];
+            if (handle != null) {
+                handle.slot = live;
+                slots[live++] = handle;
+            }
+        }
+        stripe.slots = slots;
+        stripe.end = live;
+        stripe.tombstones = 0;
+        return slots;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Stripe<T>[] newStripes(int count) {
+        return (Stripe<T>[]) new Stripe<?>[count];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Handle<T>[] newArray(int capacity) {
+        return (Handle<T>[]) new Handle<?>[capacity];
+    }
+
+    // Calls the action for every entry with the same argument. Pass a non-capturing action to
+    // stay allocation-free, like RingBuffer.publishEvent.
+    public <A> void forEach(BiConsumer<? super T, A> action, A argument) {
+        for (Stripe<T> stripe : stripes) {
+            int end = stripe.end;
+            Handle<T>[] slots = stripe.slots;
+            for (int i = 0, n = Math.min(end, slots.length); i < n; i++) {
+                Handle<T> handle = slots[i];
+                if (handle != null) {
+                    action.accept(handle.value, argument);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int stripe = -1;
+            private Handle<T>[] slots;
+            private int end;
+            private int slot;
+            private T next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    if (slots != null && slot < end) {
+                        Handle<T> handle = slots[slot++];
+                        if (handle != null) {
+                            next = handle.value;
+                        }
+                    } else if (stripe + 1 < stripes.length) {
+                        Stripe<T> current = stripes[++stripe];
+                        int currentEnd = current.end;
+                        slots = current.slots;
+                        end = Math.min(currentEnd, slots.length);
+                        slot = 0;
+                    } else {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                T value = next;
+                next = null;
+                return value;
+            }
+        };
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+}
@@ -0,0 +1,18 @@
+package server;
+
+// One client's membership in one room
+public class Subscription {
+    final ClientConnection client;
+    final Room room;
+    // Where the room keeps it, set by the broadcaster
+    StripedRegistry.Handle<Subscription> registration;
+    // Owned by the shard thread: live frames are delivered once joined, except messages up to
+    // the last one already sent in the room's backlog or seen before a reconnect
+    boolean joined;
+    long backlogSequence;
+
+    Subscription(ClientConnection client, Room room) {
+        this.client = client;
+        this.room = room;
+    }
+}
@@ -0,0 +1,51 @@
+package server;
+
+// Tokens refill continuously at a rate and are capped at a burst size. Refilled lazily from
+// the clock when something is taken, so an idle bucket costs nothing. Rate and burst are passed
+// in on every call, which lets the limits change while clients are connected. Not thread-safe,
+// each bucket belongs to one connection's reading thread.
+final class TokenBucket {
+    private double tokens = -1;
+    private long refilledAtNanos;
+
+    // False if there are not enough tokens, in which case none are taken. A rate of 0 or less
+    // means no limit. Amounts above the burst size are capped to it, or they could never pass.
+    boolean tryTake(long amount, long perSecond, long burst, long nowNanos) {
+        if (perSecond <= 0) {
+            return true;
+        }
+        refill(perSecond, burst, nowNanos);
+        double needed = Math.min(amount, Math.max(1, burst));
+        if (tokens < needed) {
+            return false;
+        }
+        tokens -= needed;
+        return true;
+    }
+
+    // Returns tokens taken for something that was refused further on
+    void putBack(long amount, long burst) {
+        if (tokens >= 0) {
+            tokens = Math.min(burst, tokens + amount);
+        }
+    }
+
+    // How long until the amount would pass at the given rate
+    long millisUntil(long amount, long perSecond, long burst) {
+        if (perSecond <= 0) {
+            return 0;
+        }
+        double missing = Math.min(amount, Math.max(1, burst)) - tokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing * 1000 / perSecond);
+    }
+
+    private void refill(long perSecond, long burst, long nowNanos) {
+        if (tokens < 0) {
+            // Starts full
+            tokens = burst;
+        } else {
+            tokens = Math.min(burst, tokens + (nowNanos - refilledAtNanos) * (double) perSecond / 1_000_000_000L);
+        }
+        refilledAtNanos = nowNanos;
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+// How a ring buffer consumer waits when there is nothing to process. One instance per consumer thread.
+public class WaitStrategy {
+    public enum Type {
+        // Lowest latency, burns a core while idle
+        BUSY_SPIN,
+        // Spins but lets other threads run
+        YIELD,
+        // Spins briefly, then parks until a producer signals
+        PARK
+    }
+
+    private static final int SPIN_ROUNDS = 100;
+    private static final long MAX_PARK_NANOS = 1_000_000;
+
+    private final Type type;
+    private volatile Thread waiter;
+
+    public WaitStrategy(Type type) {
+        this.type = type;
+    }
+
+    // Called by the consumer after a pass that found nothing, round counts consecutive idle passes
+    public void idle(int round, BooleanSupplier hasWork) {
+        switch (type) {
+            case BUSY_SPIN:
+                Thread.onSpinWait();
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                if (round < SPIN_ROUNDS) {
+                    Thread.onSpinWait();
+                    return;
+                }
+                // Publish ourselves before the last check so a producer either sees us or we see its event
+                waiter = Thread.currentThread();
+                if (!hasWork.getAsBoolean()) {
+                    LockSupport.parkNanos(MAX_PARK_NANOS);
+                }
+                waiter = null;
+        }
+    }
+
+    // Called by producers after publishing
+    public void signal() {
+        if (type == Type.PARK) {
+            Thread thread = waiter;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    // Used by producers waiting for the consumer to free a slot
+    public void backOff() {
+        switch (type) {
+            case BUSY_SPIN:
+                Thread.onSpinWait();
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                LockSupport.parkNanos(1_000);
+        }
+    }
+}
@@ -7,6 +7,116 @@ public class Constants {
     public static final int SERVER_PORT = 12345;
     public static final int MAX_MESSAGE_LENGTH = 1000;
 
+    // Server engine ("threaded", "virtual" or "nio"), overridable with -Dchat.server.mode=...
+    public static final String SERVER_MODE = System.getProperty("chat.server.mode", "threaded");
+    public static final int EVENT_LOOP_THREADS = Integer.getInteger("chat.server.eventLoops",
+            Runtime.getRuntime().availableProcessors());
+
+    // Ring buffer between client handlers and the broadcaster; wait strategy is BUSY_SPIN, YIELD or PARK
+    public static final int MESSAGE_RING_SIZE = Integer.getInteger("chat.ring.size", 4096);
+    public static final String MESSAGE_RING_WAIT_STRATEGY = System.getProperty("chat.ring.waitStrategy", "PARK");
+
+    // Number of parallel fan-out workers, connections are spread over them
+    public static final int BROADCAST_SHARDS = Integer.getInteger("chat.broadcast.shards",
+            Runtime.getRuntime().availableProcessors());
+
+    // Per-client outbound queue; overflow policy is DROP_OLDEST, DISCONNECT or BLOCK
+    public static final int OUTBOUND_QUEUE_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    public static final String OUTBOUND_OVERFLOW_POLICY = System.getProperty("chat.outbound.overflow", "DISCONNECT");
+    public static final int OUTBOUND_BLOCK_TIMEOUT_MILLIS = Integer.getInteger("chat.outbound.blockTimeoutMillis", 200);
+
+    // Pooled direct buffers for encoded frames, frames larger than the biggest class use the heap
+    public static final int BUFFER_POOL_MAX_BUFFER_SIZE = Integer.getInteger("chat.pool.maxBufferSize", 64 * 1024);
+    public static final int BUFFER_POOL_BUFFERS_PER_CLASS = Integer.getInteger("chat.pool.buffersPerClass", 1024);
+
+    // Printing every relayed message is the only per-message allocation left on the server
+    public static final boolean LOG_BROADCASTS = Boolean.parseBoolean(System.getProperty("chat.log.broadcasts", "true"));
+
+    // Write coalescing: frames already queued for a connection are flushed together, up to
+    // this many bytes; after a burst the writer waits this long for more before flushing
+    public static final int WRITE_COALESCE_MAX_BYTES = Integer.getInteger("chat.write.maxBytes", 64 * 1024);
+    public static final int WRITE_COALESCE_MAX_DELAY_MICROS = Integer.getInteger("chat.write.maxDelayMicros", 200);
+
+    // Recent history sent to joining clients, limited by message count and by bytes
+    public static final int HISTORY_MAX_MESSAGES = Integer.getInteger("chat.history.maxMessages", 100);
+    public static final int HISTORY_MAX_BYTES = Integer.getInteger("chat.history.maxBytes", 1024 * 1024);
+
+    // Message journal: segment files under this directory, synced to disk every N messages or T
+    // milliseconds, whichever comes first; the oldest segments are deleted beyond the maximum
+    public static final boolean JOURNAL_ENABLED = Boolean.parseBoolean(System.getProperty("chat.journal.enabled", "true"));
+    public static final String JOURNAL_DIR = System.getProperty("chat.journal.dir", "journal");
+    public static final int JOURNAL_SEGMENT_SIZE = Integer.getInteger("chat.journal.segmentSize", 64 * 1024 * 1024);
+    public static final int JOURNAL_MAX_SEGMENTS = Integer.getInteger("chat.journal.maxSegments", 16);
+    public static final int JOURNAL_SYNC_EVERY = Integer.getInteger("chat.journal.syncEvery", 1000);
+    public static final int JOURNAL_SYNC_MILLIS = Integer.getInteger("chat.journal.syncMillis", 1000);
+
+    // Presence changes within this window go out as one update and one chat line
+    public static final int PRESENCE_BATCH_MILLIS = Integer.getInteger("chat.presence.batchMillis", 100);
+
+    // Relative shares of the control, chat and bulk lanes when all of them have traffic, both in
+    // the broadcaster and in every connection's writer
+    public static final int LANE_WEIGHT_CONTROL = Integer.getInteger("chat.lane.controlWeight", 8);
+    public static final int LANE_WEIGHT_CHAT = Integer.getInteger("chat.lane.chatWeight", 4);
+    public static final int LANE_WEIGHT_BULK = Integer.getInteger("chat.lane.bulkWeight", 1);
+    // Messages at least this large go to the broadcaster through the bulk lane
+    public static final int BULK_MESSAGE_BYTES = Integer.getInteger("chat.lane.bulkMessageBytes", 8192);
+
+    // What one client may send: messages and bytes per second, with bursts up to the given sizes.
+    // 0 turns a limit off. All of these can also be changed at runtime through RateLimits.
+    public static final int RATE_MESSAGES_PER_SECOND = Integer.getInteger("chat.rate.messagesPerSecond", 20);
+    public static final int RATE_MESSAGE_BURST = Integer.getInteger("chat.rate.messageBurst", 40);
+    public static final int RATE_BYTES_PER_SECOND = Integer.getInteger("chat.rate.bytesPerSecond", 64 * 1024);
+    public static final int RATE_BYTE_BURST = Integer.getInteger("chat.rate.byteBurst", 256 * 1024);
+    // Above this fill level of the broadcaster's rings, bulk messages and status changes are refused
+    public static final int SHED_WATERMARK_PERCENT = Integer.getInteger("chat.shed.watermarkPercent", 75);
+
+    // How often message rates and fan-out percentiles are worked out. With a file name set, the
+    // metrics are also written there every time.
+    public static final int METRICS_INTERVAL_MILLIS = Integer.getInteger("chat.metrics.intervalMillis", 5000);
+    public static final String METRICS_FILE = System.getProperty("chat.metrics.file", "");
+
+    // Share of sent messages clients give a trace header, 0 turns tracing off. The server times
+    // traced messages unless it has it set to 0 itself. Per-stage percentiles are in the server's
+    // metrics and printed by the client every chat.trace.reportMillis.
+    public static final double TRACE_SAMPLE_RATE = Double.parseDouble(System.getProperty("chat.trace.sampleRate", "0.01"));
+    public static final int TRACE_REPORT_MILLIS = Integer.getInteger("chat.trace.reportMillis", 60000);
+
+    // Lock stripes of the connection registry, more means less contention on connect storms
+    public static final int REGISTRY_STRIPES = Integer.getInteger("chat.registry.stripes", 16);
+
+    // Every client is in the default room, others are joined by name
+    public static final String DEFAULT_ROOM = System.getProperty("chat.room.default", "general");
+    public static final int MAX_ROOM_NAME_LENGTH = Integer.getInteger("chat.room.maxNameLength", 32);
+    // Rooms one client can be in, the default room included, and rooms the server keeps at once
+    public static final int MAX_ROOMS_PER_CONNECTION = Integer.getInteger("chat.room.maxPerConnection", 32);
+    public static final int MAX_ROOMS = Integer.getInteger("chat.room.maxRooms", 1000);
+
+    // Longest username and status a client may send, in UTF-8 bytes. Presence frames list them
+    // for every member of a room.
+    public static final int MAX_USERNAME_BYTES = Integer.getInteger("chat.user.maxNameBytes", 64);
+    public static final int MAX_STATUS_BYTES = Integer.getInteger("chat.user.maxStatusBytes", 256);
+
+    // Slow consumers: warn when the oldest queued frame is this old (or too many bytes are
+    // pending), disconnect if the client is still over the limit after the grace period
+    public static final int SLOW_CONSUMER_LAG_MILLIS = Integer.getInteger("chat.slow.lagMillis", 5000);
+    public static final long SLOW_CONSUMER_MAX_PENDING_BYTES = Long.getLong("chat.slow.maxPendingBytes", 4L * 1024 * 1024);
+    public static final int SLOW_CONSUMER_GRACE_MILLIS = Integer.getInteger("chat.slow.graceMillis", 10000);
+    public static final int SLOW_CONSUMER_CHECK_MILLIS = Integer.getInteger("chat.slow.checkMillis", 1000);
+
+    // Framing
+    public static final int READ_BUFFER_SIZE = 8 * 1024;
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    // Message bubbles kept in the chat window, older ones are dropped
+    public static final int MAX_DISPLAYED_MESSAGES = Integer.getInteger("chat.client.maxMessages", 1000);
+
+    // Client reconnect: a random delay of up to base * 2^attempt, capped, so clients dropped at
+    // the same moment do not all come back at once. Messages typed meanwhile are queued, up to
+    // the limit.
+    public static final int RECONNECT_BASE_DELAY_MILLIS = Integer.getInteger("chat.client.reconnectBaseMillis", 500);
+    public static final int RECONNECT_MAX_DELAY_MILLIS = Integer.getInteger("chat.client.reconnectMaxMillis", 30000);
+    public static final int OFFLINE_QUEUE_LIMIT = Integer.getInteger("chat.client.offlineQueue", 1000);
+
     // Message types
     public static final String MESSAGE_TYPE_TEXT = "TEXT";
     public static final String MESSAGE_TYPE_SYSTEM = "SYSTEM";
@@ -0,0 +1,114 @@
+package utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear histogram of durations in nanoseconds, like HdrHistogram with one significant
+// digit: every power of two is split into 16 buckets, so a value is off by at most 1/16.
+// Recording is one LongAdder increment and safe from any number of threads. Percentiles are
+// read from a copy of the counts, usually the counts of one interval.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // About 73 minutes, anything longer is counted as that
+    private static final long MAX_VALUE = (1L << 42) - 1;
+    private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+    private final LongAdder[] counts;
+    // For intervalCounts(), owned by its caller
+    private long[] previous;
+    private long[] current;
+    private long[] interval;
+
+    public LatencyHistogram() {
+        counts = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        counts[indexOf(Math.max(0, Math.min(nanos, MAX_VALUE)))].increment();
+    }
+
+    // Values below 32 get a bucket each, above that the top five bits pick the bucket
+    private static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    // Largest value counted in the bucket
+    private static long highestValueOf(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public long[] newCounts() {
+        return new long[BUCKETS];
+    }
+
+    // Counts recorded concurrently may or may not be in the copy
+    public void copyCounts(long[] into) {
+        for (int i = 0; i < BUCKETS; i++) {
+            into[i] = counts[i].sum();
+        }
+    }
+
+    // What was recorded since the previous call. Only one thread may call this, the array is
+    // reused by the next call.
+    public long[] intervalCounts() {
+        if (interval == null) {
+            previous = newCounts();
+            current = newCounts();
+            interval = newCounts();
+        }
+        copyCounts(current);
+        for (int i = 0; i < BUCKETS; i++) {
+            interval[i] = current[i] - previous[i];
+        }
+        long[] swap = previous;
+        previous = current;
+        current = swap;
+        return interval;
+    }
+
+    public static long total(long[] counts) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    // The value at or below which the given percentage of the counts lie, 0 if there are none
+    public static long percentile(long[] counts, double percent) {
+        long total = total(counts);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percent / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestValueOf(i);
+            }
+        }
+        return highestValueOf(counts.length - 1);
+    }
+
+    public static long max(long[] counts) {
+        for (int i = counts.length - 1; i >= 0; i--) {
+            if (counts[i] > 0) {
+                return highestValueOf(i);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,97 @@
+package protocol;
+
+import model.Message;
+import model.User;
+import utils.Constants;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Decodes DIRECT frames the way the server does and fails when one that passes the limits
+// cannot be sent on as it is, or when one that could not is let through:
+//
+//   javac -d out $(find src test -name '*.java')
+//   java -cp out protocol.DirectLimitCheck
+//
+// Malformed UTF-8 is the case to watch, every bad byte would come back as three.
+public class DirectLimitCheck {
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        String longestName = "n".repeat(Constants.MAX_USERNAME_BYTES);
+        byte[] invalid = new byte[FrameCodec.MAX_DIRECT_CONTENT_SIZE];
+        Arrays.fill(invalid, (byte) 0xFF);
+
+        refused("Malformed content", direct(utf8(longestName), invalid));
+        byte[] truncatedName = new byte[Constants.MAX_USERNAME_BYTES];
+        Arrays.fill(truncatedName, (byte) 0xC3);
+        refused("Malformed recipient", direct(truncatedName, utf8("hi")));
+        refused("Long content", direct(utf8(longestName), new byte[FrameCodec.MAX_DIRECT_CONTENT_SIZE + 1]));
+
+        // The largest content allowed, in 3-byte characters where they fit, sent on between the
+        // longest names
+        int size = FrameCodec.MAX_DIRECT_CONTENT_SIZE;
+        String content = "€".repeat(size / 3) + "e".repeat(size % 3);
+        Message received = FrameCodec.decodeDirect(direct(utf8(longestName), utf8(content)),
+            Constants.MAX_USERNAME_BYTES, FrameCodec.MAX_DIRECT_CONTENT_SIZE);
+        Message message = new Message(new User(longestName), received.getContent(), received.getMessageType(),
+            received.getTimestamp());
+        message.setRecipient(received.getRecipient());
+        try {
+            FrameCodec.encodeDirect(message);
+            System.out.println("✅ Largest valid content is sent on");
+        } catch (IllegalArgumentException e) {
+            fail("Largest valid content could not be sent on: " + e.getMessage());
+        }
+
+        if (failures > 0) {
+            System.exit(1);
+        }
+        System.out.println("✅ DIRECT limits hold");
+        System.exit(0);
+    }
+
+    private static void refused(String what, ByteBuffer frame) throws IOException {
+        try {
+            FrameCodec.decodeDirect(frame, Constants.MAX_USERNAME_BYTES, FrameCodec.MAX_DIRECT_CONTENT_SIZE);
+            fail(what + " was accepted");
+        } catch (LimitExceededException e) {
+            System.out.println("✅ " + what + " refused: " + e.getMessage());
+        }
+    }
+
+    private static void fail(String reason) {
+        System.out.println("❌ " + reason);
+        failures++;
+    }
+
+    // recipient | kind | timestamp | sender | content, positioned after the type byte
+    private static ByteBuffer direct(byte[] recipient, byte[] content) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        putString(body, recipient);
+        body.write(0);
+        putVarLong(body, System.currentTimeMillis());
+        putString(body, utf8("sender"));
+        putString(body, content);
+        return ByteBuffer.wrap(body.toByteArray());
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteArrayOutputStream out, byte[] bytes) {
+        putVarLong(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    private static void putVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
@@ -0,0 +1,175 @@
+package server;
+
+import model.Message;
+import model.User;
+import protocol.EncodedFrame;
+import protocol.FrameCodec;
+import protocol.FrameType;
+import protocol.Handshake;
+import protocol.MessageView;
+import utils.Constants;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+// Connects, chats and disconnects clients over and over while one session stays connected, and
+// fails when the server's heap after GC grows by more than a few bytes per connection:
+//
+//   javac -d out $(find src test -name '*.java')
+//   java -cp out -Dchat.server.mode=nio server.ConnectionSoakCheck
+//   java -cp out -Dchat.server.mode=threaded server.ConnectionSoakCheck
+//
+// Every cycle joins a room of its own, sends to it and to the default room and sends the
+// long-lived session a direct message, so rooms, presence and the username index all see it.
+// The limit is -Dcheck.maxBytesPerConnection, the cycle count -Dcheck.cycles.
+public class ConnectionSoakCheck {
+    private static final int CYCLES = Integer.getInteger("check.cycles", 5000);
+    private static final int MAX_BYTES_PER_CONNECTION = Integer.getInteger("check.maxBytesPerConnection", 64);
+    private static final int WARMUP_CYCLES = 500;
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    public static void main(String[] args) throws Exception {
+        // Limits and the journal would only get in the way of connecting this often
+        defaultProperty("chat.rate.messagesPerSecond", "0");
+        defaultProperty("chat.rate.bytesPerSecond", "0");
+        defaultProperty("chat.journal.enabled", "false");
+        defaultProperty("chat.log.broadcasts", "false");
+
+        ChatServer server = new ChatServer();
+        Thread serverThread = new Thread(server::start, "check-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(1000);
+
+        Socket session = connect("check-session");
+        drain(session);
+
+        cycles(server, 0, WARMUP_CYCLES);
+        long before = heapAfterGc();
+        cycles(server, WARMUP_CYCLES, CYCLES);
+        long after = heapAfterGc();
+
+        double perConnection = (after - before) / (double) CYCLES;
+        System.out.printf("📊 %s mode: heap after GC %,d KB before and %,d KB after %,d connections, "
+            + "%.1f bytes per connection%n", Constants.SERVER_MODE, before / 1024, after / 1024, CYCLES,
+            perConnection);
+        if (session.isClosed() || server.getMetrics().getConnections() != 1) {
+            System.out.println("❌ The long-lived session did not survive");
+            System.exit(1);
+        }
+        if (perConnection > MAX_BYTES_PER_CONNECTION) {
+            System.out.println("❌ More than " + MAX_BYTES_PER_CONNECTION + " bytes retained per connection");
+            System.exit(1);
+        }
+        System.out.println("✅ Heap flat within " + MAX_BYTES_PER_CONNECTION + " bytes per connection");
+        System.exit(0);
+    }
+
+    private static void defaultProperty(String name, String value) {
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
+    // Waits until every cycle's connection is gone from the server again
+    private static void cycles(ChatServer server, int first, int count) throws Exception {
+        for (int i = first; i < first + count; i++) {
+            cycle(i);
+        }
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (server.getMetrics().getConnections() > 1) {
+            if (System.currentTimeMillis() > deadline) {
+                System.out.println("❌ " + (server.getMetrics().getConnections() - 1) + " connections never closed");
+                System.exit(1);
+            }
+            Thread.sleep(10);
+        }
+        // Presence batches and room cleanup run on timers
+        Thread.sleep(Constants.PRESENCE_BATCH_MILLIS * 5L);
+    }
+
+    private static void cycle(int index) throws IOException {
+        String username = "check-" + index;
+        String room = "soak-" + index;
+        try (Socket socket = connect(username)) {
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.write(FrameCodec.encodeRoomJoin(room, 0));
+
+            Message inRoom = new Message(new User(username), "in my own room", Constants.MESSAGE_TYPE_TEXT);
+            inRoom.setRoom(room);
+            Message inDefault = new Message(new User(username), "hello everyone", Constants.MESSAGE_TYPE_TEXT);
+            Message direct = new Message(new User(username), "just for you", Constants.MESSAGE_TYPE_TEXT);
+            direct.setRoom(null);
+            direct.setRecipient("check-session");
+            write(out, FrameCodec.encodeMessage(inRoom));
+            write(out, FrameCodec.encodeMessage(inDefault));
+            out.write(FrameCodec.encodeDirect(direct));
+            out.flush();
+
+            // Both messages come back once the server has handled everything sent before them.
+            // Joining the default room brings its history first.
+            MessageView view = new MessageView();
+            int messages = 0;
+            while (messages < 2) {
+                ByteBuffer frame = ByteBuffer.allocate(in.readInt());
+                in.readFully(frame.array());
+                if (frame.get() == FrameType.MESSAGE && view.wrap(frame).getSender().equals(username)) {
+                    messages++;
+                }
+            }
+        }
+    }
+
+    private static Socket connect(String username) throws IOException {
+        Socket socket = new Socket("localhost", Constants.SERVER_PORT);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.write(Handshake.preamble());
+        out.write(FrameCodec.encodeHello(new User(username), 0));
+        out.flush();
+        return socket;
+    }
+
+    private static void write(OutputStream out, EncodedFrame frame) throws IOException {
+        byte[] bytes = new byte[frame.length()];
+        frame.asBuffer().get(bytes);
+        frame.release();
+        out.write(bytes);
+    }
+
+    // Reads and discards everything the session is sent, so it never falls behind
+    private static void drain(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[65536];
+            try {
+                while (in.read(buffer) != -1) {
+                    // Discard
+                }
+            } catch (IOException e) {
+                // Closed on exit
+            }
+        }, "check-session-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Used heap once collections stop freeing anything
+    private static long heapAfterGc() throws InterruptedException {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(200);
+            used = Math.min(used, MEMORY.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
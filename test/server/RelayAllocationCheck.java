@@ -0,0 +1,163 @@
+package server;
+
+import model.Message;
+import model.User;
+import protocol.EncodedFrame;
+import protocol.FrameCodec;
+import protocol.FrameType;
+import protocol.Handshake;
+import utils.Constants;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Relays chat messages through a real server and fails when its threads allocate more than a
+// few bytes per message once warmed up. What is left is the EncodedFrame of each broadcast,
+// shared by all recipients; its bytes come from the pool. Virtual threads are not measured, so
+// run it for the other two server modes:
+//
+//   javac -d out $(find src test -name '*.java')
+//   java -cp out -Dchat.server.mode=nio server.RelayAllocationCheck
+//   java -cp out -Dchat.server.mode=threaded server.RelayAllocationCheck
+//
+// The limit is -Dcheck.maxBytesPerMessage, the message count -Dcheck.messages.
+public class RelayAllocationCheck {
+    private static final int RECEIVERS = 20;
+    private static final int MESSAGES = Integer.getInteger("check.messages", 50_000);
+    private static final int MAX_BYTES_PER_MESSAGE = Integer.getInteger("check.maxBytesPerMessage", 64);
+    // Sent but not yet read by every receiver, keeps outbound queues far from full
+    private static final int IN_FLIGHT = 256;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        // What is measured is the relay, not the limits, the journal or the console
+        defaultProperty("chat.rate.messagesPerSecond", "0");
+        defaultProperty("chat.rate.bytesPerSecond", "0");
+        defaultProperty("chat.journal.enabled", "false");
+        defaultProperty("chat.log.broadcasts", "false");
+
+        Thread serverThread = new Thread(() -> new ChatServer().start(), "check-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(1000);
+
+        AtomicLongArray received = new AtomicLongArray(RECEIVERS + 1);
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i <= RECEIVERS; i++) {
+            sockets.add(connect("check" + i, received, i));
+        }
+        Thread.sleep(1000);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sockets.get(0).getOutputStream()));
+        EncodedFrame frame = FrameCodec.encodeMessage(new Message(new User("check0"),
+            "hello there, how is it going?", Constants.MESSAGE_TYPE_TEXT));
+        byte[] bytes = new byte[frame.length()];
+        frame.asBuffer().get(bytes);
+        frame.release();
+
+        // Once to warm up pools, rings and the JIT, then measured
+        relay(out, bytes, received, MESSAGES);
+        long before = serverAllocatedBytes();
+        relay(out, bytes, received, MESSAGES);
+        long after = serverAllocatedBytes();
+
+        double perMessage = (after - before) / (double) MESSAGES;
+        System.out.printf("📊 %s mode: %.1f bytes allocated per relayed message, %d recipients each%n",
+            Constants.SERVER_MODE, perMessage, RECEIVERS + 1);
+        if (perMessage > MAX_BYTES_PER_MESSAGE) {
+            System.out.println("❌ More than " + MAX_BYTES_PER_MESSAGE + " bytes per message");
+            System.exit(1);
+        }
+        System.out.println("✅ Relay allocation within " + MAX_BYTES_PER_MESSAGE + " bytes per message");
+        System.exit(0);
+    }
+
+    private static void defaultProperty(String name, String value) {
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
+    private static Socket connect(String username, AtomicLongArray received, int index) throws IOException {
+        Socket socket = new Socket("localhost", Constants.SERVER_PORT);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.write(Handshake.preamble());
+        out.write(FrameCodec.encodeHello(new User(username), 0));
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[Constants.MAX_FRAME_SIZE];
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    in.readFully(buffer, 0, length);
+                    if (buffer[0] == FrameType.MESSAGE) {
+                        received.incrementAndGet(index);
+                    }
+                }
+            } catch (IOException e) {
+                // Closed on exit
+            }
+        }, "check-reader-" + index);
+        reader.setDaemon(true);
+        reader.start();
+        return socket;
+    }
+
+    // Sends the messages and waits until every client, the sender included, has all of them
+    private static void relay(DataOutputStream out, byte[] message, AtomicLongArray received, int count)
+            throws Exception {
+        long target = received.get(0) + count;
+        long sent = received.get(0);
+        while (sent < target) {
+            while (sent - slowest(received) >= IN_FLIGHT) {
+                Thread.onSpinWait();
+            }
+            out.write(message);
+            sent++;
+            if (sent % 16 == 0) {
+                out.flush();
+            }
+        }
+        out.flush();
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (slowest(received) < target) {
+            if (System.currentTimeMillis() > deadline) {
+                System.out.println("❌ Messages did not arrive, " + slowest(received) + " of " + target);
+                System.exit(1);
+            }
+            Thread.sleep(10);
+        }
+        // Let the server's threads go idle before they are measured
+        Thread.sleep(200);
+    }
+
+    private static long slowest(AtomicLongArray received) {
+        long slowest = Long.MAX_VALUE;
+        for (int i = 0; i < received.length(); i++) {
+            slowest = Math.min(slowest, received.get(i));
+        }
+        return slowest;
+    }
+
+    // Every live thread that is not part of this check. Threads started in between only add.
+    private static long serverAllocatedBytes() {
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!thread.getName().startsWith("check-") && thread != Thread.currentThread()) {
+                total += Math.max(0, THREADS.getThreadAllocatedBytes(thread.threadId()));
+            }
+        }
+        return total;
+    }
+}